@@ -0,0 +1,125 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the per-layer analysis of a source image,
+ * the gradient field of its blurred copy. The blurred copy itself is only
+ * needed to compute the field, so it is not kept. Entries are keyed by the
+ * source image, the brush size of the layer and the blur factor, so changing
+ * any other style parameter can reuse them. The cache holds at most a fixed
+ * number of bytes.
+ */
+public class AnalysisCache {
+	private static class Key {
+		private final BufferedImage source;
+		private final int brushSize;
+		private final float blurFactor;
+		
+		public Key( BufferedImage source, int brushSize, float blurFactor ) {
+			this.source = source;
+			this.brushSize = brushSize;
+			this.blurFactor = blurFactor;
+		}
+		
+		public boolean equals( Object o ) {
+			if ( !( o instanceof Key ) ) {
+				return false;
+			}
+			Key k = (Key)o;
+			return source == k.source && brushSize == k.brushSize && 
+				Float.floatToIntBits( blurFactor ) == Float.floatToIntBits( k.blurFactor );
+		}
+		
+		public int hashCode() {
+			return ( System.identityHashCode( source ) * 31 + brushSize ) * 31 + Float.floatToIntBits( blurFactor );
+		}
+	}
+	
+	private final LinkedHashMap<Key, GradientField> entries = new LinkedHashMap<Key, GradientField>( 16, 0.75f, true );
+	private long budget;
+	private long used = 0;
+	
+	private long hits = 0;
+	private long misses = 0;
+	
+	/**
+	 * @param budget the most memory, in bytes, the cached fields may occupy
+	 */
+	public AnalysisCache( long budget ) {
+		this.budget = budget;
+	}
+	
+	public synchronized GradientField get( BufferedImage source, int brushSize, float blurFactor ) {
+		GradientField field = entries.get( new Key( source, brushSize, blurFactor ) );
+		
+		if ( field == null ) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return field;
+	}
+	
+	public synchronized void put( BufferedImage source, int brushSize, float blurFactor, GradientField field ) {
+		if ( field.getSizeInBytes() > budget ) {
+			return;
+		}
+		
+		GradientField old = entries.put( new Key( source, brushSize, blurFactor ), field );
+		if ( old != null ) {
+			used -= old.getSizeInBytes();
+		}
+		used += field.getSizeInBytes();
+		
+		evict();
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+		used = 0;
+	}
+	
+	public synchronized void setBudget( long newValue ) {
+		budget = newValue;
+		evict();
+	}
+	public synchronized long getBudget() {
+		return budget;
+	}
+	
+	public synchronized long getSizeInBytes() {
+		return used;
+	}
+	public synchronized long getHits() {
+		return hits;
+	}
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	private void evict() {
+		Iterator<Map.Entry<Key, GradientField>> it = entries.entrySet().iterator();
+		while ( used > budget && it.hasNext() ) {
+			used -= it.next().getValue().getSizeInBytes();
+			it.remove();
+		}
+	}
+}
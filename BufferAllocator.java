@@ -0,0 +1,173 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Hands out the large buffers a render paints into: the target's pixels,
+ * the coverage mask and the gradient fields. HEAP backs them with ordinary
+ * arrays; mapped() backs them with memory mapped temporary files, which
+ * keeps them out of the Java heap so big canvases neither need a huge heap
+ * nor make the collector copy them around.
+ *
+ * A single buffer is limited to 2 GB, which is a canvas of about 500
+ * megapixels.
+ */
+public abstract class BufferAllocator {
+	public final static BufferAllocator HEAP = new BufferAllocator() {
+		protected ByteBuffer allocateBytes( long size ) {
+			if ( size > Integer.MAX_VALUE ) {
+				throw new IllegalArgumentException( "buffer of " + size + " bytes is too big to allocate" );
+			}
+			return ByteBuffer.allocate( (int)size ).order( ByteOrder.nativeOrder() );
+		}
+
+		// typed arrays rather than views of a byte array, so images can
+		// wrap the int array directly
+		public IntBuffer allocateInts( int count ) {
+			return IntBuffer.wrap( new int[count] );
+		}
+		public LongBuffer allocateLongs( int count ) {
+			return LongBuffer.wrap( new long[count] );
+		}
+		public ShortBuffer allocateShorts( int count ) {
+			return ShortBuffer.wrap( new short[count] );
+		}
+		public FloatBuffer allocateFloats( int count ) {
+			return FloatBuffer.wrap( new float[count] );
+		}
+
+		public String toString() {
+			return "heap";
+		}
+	};
+
+	/**
+	 * Returns an allocator mapping its buffers from temporary files in the
+	 * directory. The files are deleted as soon as they are mapped where the
+	 * platform allows it, and when the virtual machine exits otherwise.
+	 */
+	public static BufferAllocator mapped( final File directory ) {
+		return new BufferAllocator() {
+			protected ByteBuffer allocateBytes( long size ) {
+				if ( size > Integer.MAX_VALUE ) {
+					throw new IllegalArgumentException( "buffer of " + size + " bytes is too big to map" );
+				}
+
+				try {
+					File file = File.createTempFile( "painterly", ".buf", directory );
+
+					RandomAccessFile f = new RandomAccessFile( file, "rw" );
+					try {
+						f.setLength( size );
+						return f.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size ).order( ByteOrder.nativeOrder() );
+					} finally {
+						f.close();
+						// only remembered for exit when it cannot go now, since
+						// every path registered is kept until the VM exits
+						if ( !file.delete() ) {
+							file.deleteOnExit();
+						}
+					}
+				} catch ( IOException e ) {
+					throw new UncheckedIOException( e );
+				}
+			}
+
+			public String toString() {
+				return "mapped in " + directory;
+			}
+		};
+	}
+
+	/**
+	 * Returns a zeroed buffer of the given number of bytes in native order.
+	 *
+	 * @throws UncheckedIOException if the backing file cannot be created
+	 */
+	protected abstract ByteBuffer allocateBytes( long size );
+
+	public IntBuffer allocateInts( int count ) {
+		return allocateBytes( (long)count * 4 ).asIntBuffer();
+	}
+	public LongBuffer allocateLongs( int count ) {
+		return allocateBytes( (long)count * 8 ).asLongBuffer();
+	}
+	public ShortBuffer allocateShorts( int count ) {
+		return allocateBytes( (long)count * 2 ).asShortBuffer();
+	}
+	public FloatBuffer allocateFloats( int count ) {
+		return allocateBytes( (long)count * 4 ).asFloatBuffer();
+	}
+
+	/**
+	 * Returns an ARGB image, laid out like TYPE_INT_ARGB, whose pixels are
+	 * the buffer. An array backed buffer gives a real TYPE_INT_ARGB image;
+	 * any other buffer gives a custom image that Java2D can still draw into
+	 * and read, only more slowly.
+	 */
+	public static BufferedImage createArgbImage( int width, int height, IntBuffer pixels ) {
+		if ( pixels.hasArray() && pixels.arrayOffset() == 0 && pixels.array().length == width * height ) {
+			DataBufferInt data = new DataBufferInt( pixels.array(), width * height );
+			ColorModel cm = ColorModel.getRGBdefault();
+			WritableRaster raster = Raster.createWritableRaster( cm.createCompatibleSampleModel( width, height ), data, null );
+
+			return new BufferedImage( cm, raster, false, null );
+		}
+
+		ColorModel cm = ColorModel.getRGBdefault();
+		WritableRaster raster = Raster.createWritableRaster( cm.createCompatibleSampleModel( width, height ),
+				new IntBufferDataBuffer( pixels ), null );
+
+		return new BufferedImage( cm, raster, false, null );
+	}
+
+	/**
+	 * A single bank DataBuffer of ints kept in an IntBuffer.
+	 */
+	private static class IntBufferDataBuffer extends DataBuffer {
+		private final IntBuffer pixels;
+
+		public IntBufferDataBuffer( IntBuffer pixels ) {
+			super( DataBuffer.TYPE_INT, pixels.capacity() );
+			this.pixels = pixels;
+		}
+
+		public int getElem( int bank, int i ) {
+			return pixels.get( i );
+		}
+
+		public void setElem( int bank, int i, int val ) {
+			pixels.put( i, val );
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets one thread ask a render running on another thread to stop. The render
+ * polls the token between layers and between batches of strokes.
+ */
+public class CancellationToken {
+	private volatile boolean cancelled = false;
+	
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * @throws CancellationException if the token has been cancelled
+	 */
+	public void checkCancelled() {
+		if ( cancelled ) {
+			throw new CancellationException( "render cancelled" );
+		}
+	}
+}
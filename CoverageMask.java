@@ -0,0 +1,291 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.Rectangle;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Path2D;
+import java.nio.LongBuffer;
+
+/**
+ * Records which pixels of the canvas have been painted, one bit per pixel
+ * packed into longs row by row. A pixel counts as covered by a shape when its
+ * centre lies inside the shape, which is the rule Java2D uses when it fills
+ * without antialiasing.
+ */
+public class CoverageMask {
+	private final int width;
+	private final int height;
+	private final int wordsPerRow;
+	private final LongBuffer bits;
+	
+	public CoverageMask( int width, int height ) {
+		this( width, height, BufferAllocator.HEAP );
+	}
+	
+	public CoverageMask( int width, int height, BufferAllocator allocator ) {
+		this.width = width;
+		this.height = height;
+		
+		wordsPerRow = ( width + 63 ) >>> 6;
+		bits = allocator.allocateLongs( wordsPerRow * height );
+	}
+	
+	/**
+	 * Creates a copy of another mask.
+	 */
+	public CoverageMask( CoverageMask source, BufferAllocator allocator ) {
+		this( source.width, source.height, allocator );
+		
+		bits.put( source.bits.duplicate() );
+		bits.clear();
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+	
+	public boolean isSet( int x, int y ) {
+		return ( bits.get( y * wordsPerRow + ( x >>> 6 ) ) & ( 1L << x ) ) != 0;
+	}
+	
+	public void set( int x, int y ) {
+		int i = y * wordsPerRow + ( x >>> 6 );
+		bits.put( i, bits.get( i ) | 1L << x );
+	}
+	
+	/**
+	 * Returns the bits of the 64 pixels of row y starting at x, which must
+	 * be a multiple of 64. Bit i stands for pixel x + i.
+	 */
+	public long getWord( int x, int y ) {
+		return bits.get( y * wordsPerRow + ( x >>> 6 ) );
+	}
+	
+	/**
+	 * Returns whether every pixel from (x0, y0) up to but not including
+	 * (x1, y1) is covered.
+	 */
+	public boolean isFilled( int x0, int y0, int x1, int y1 ) {
+		if ( x0 >= x1 ) {
+			return true;
+		}
+		
+		int first = x0 >>> 6, last = ( x1 - 1 ) >>> 6;
+		long firstMask = -1L << x0;
+		long lastMask = -1L >>> ( 63 - ( ( x1 - 1 ) & 63 ) );
+		if ( first == last ) {
+			firstMask &= lastMask;
+		}
+		
+		for ( int y = y0; y < y1; y++ ) {
+			int row = y * wordsPerRow;
+			
+			if ( ( bits.get( row + first ) & firstMask ) != firstMask ) {
+				return false;
+			}
+			if ( first != last ) {
+				for ( int w = first + 1; w < last; w++ ) {
+					if ( bits.get( row + w ) != -1L ) {
+						return false;
+					}
+				}
+				if ( ( bits.get( row + last ) & lastMask ) != lastMask ) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the number of covered pixels.
+	 */
+	public long countSet() {
+		long count = 0;
+		for ( int i = 0; i < bits.capacity(); i++ ) {
+			count += Long.bitCount( bits.get( i ) );
+		}
+		return count;
+	}
+	
+	public void clear() {
+		for ( int i = 0; i < bits.capacity(); i++ ) {
+			bits.put( i, 0L );
+		}
+	}
+	
+	/**
+	 * Marks every pixel as covered.
+	 */
+	public void fill() {
+		for ( int y = 0; y < height; y++ ) {
+			fillSpan( y, 0, width );
+		}
+	}
+	
+	public void clear( Rectangle r ) {
+		Rectangle area = r.intersection( new Rectangle( 0, 0, width, height ) );
+		
+		for ( int y = area.y; y < area.y + area.height; y++ ) {
+			clearSpan( y, area.x, area.x + area.width );
+		}
+	}
+	
+	/**
+	 * Marks the pixels covered by a filled circle.
+	 */
+	public void fillDisc( float cx, float cy, float radius ) {
+		fillCapsule( cx, cy, cx, cy, radius );
+	}
+	
+	/**
+	 * Marks the pixels covered by a path stroked with a round pen of the
+	 * given width. Curves are flattened to within a tenth of a pixel.
+	 */
+	public void fillStroke( Path2D path, float width ) {
+		float radius = width / 2;
+		float[] coords = new float[6];
+		float x0 = 0, y0 = 0;
+		
+		for ( PathIterator it = path.getPathIterator( null, 0.1 ); !it.isDone(); it.next() ) {
+			switch ( it.currentSegment( coords ) ) {
+			case PathIterator.SEG_MOVETO:
+				x0 = coords[0];
+				y0 = coords[1];
+				break;
+			case PathIterator.SEG_LINETO:
+				fillCapsule( x0, y0, coords[0], coords[1], radius );
+				x0 = coords[0];
+				y0 = coords[1];
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Marks the pixels within radius of the segment from (x0, y0) to (x1, y1).
+	 */
+	public void fillCapsule( float x0, float y0, float x1, float y1, float radius ) {
+		int minY = Math.max( (int)Math.floor( Math.min( y0, y1 ) - radius ), 0 );
+		int maxY = Math.min( (int)Math.ceil( Math.max( y0, y1 ) + radius ), height - 1 );
+		float[] span = new float[2];
+		
+		for ( int y = minY; y <= maxY; y++ ) {
+			if ( capsuleSpan( x0, y0, x1, y1, radius, y + 0.5f, span ) ) {
+				// pixels whose centre lies within the span
+				fillSpan( y, Math.max( (int)Math.ceil( span[0] - 0.5f ), 0 ),
+						Math.min( (int)Math.floor( span[1] - 0.5f ) + 1, width ) );
+			}
+		}
+	}
+	
+	/**
+	 * Finds where the horizontal line at py crosses the capsule of points
+	 * within radius of the segment from (ax, ay) to (bx, by). The capsule is
+	 * convex, so the crossing is a single interval: the hull of the crossings
+	 * of the discs around both ends and of the band along the segment. The
+	 * interval is stored in span[0] and span[1].
+	 * 
+	 * @return false if the line misses the capsule
+	 */
+	static boolean capsuleSpan( float ax, float ay, float bx, float by, float radius, float py, float[] span ) {
+		float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+		float radiusSqr = radius * radius;
+		
+		float da = py - ay;
+		if ( da * da < radiusSqr ) {
+			float w = (float)Math.sqrt( radiusSqr - da * da );
+			lo = ax - w;
+			hi = ax + w;
+		}
+		float db = py - by;
+		if ( db * db < radiusSqr ) {
+			float w = (float)Math.sqrt( radiusSqr - db * db );
+			if ( bx - w < lo ) { lo = bx - w; }
+			if ( bx + w > hi ) { hi = bx + w; }
+		}
+		
+		float dx = bx - ax, dy = by - ay;
+		float length = (float)Math.sqrt( dx * dx + dy * dy );
+		if ( length > 0 ) {
+			float ux = dx / length, uy = dy / length;
+			float bandLo = Float.NEGATIVE_INFINITY, bandHi = Float.POSITIVE_INFINITY;
+			
+			// along the segment: 0 <= ( x - ax ) * ux + da * uy <= length
+			if ( ux != 0 ) {
+				float e0 = ax - da * uy / ux, e1 = ax + ( length - da * uy ) / ux;
+				bandLo = e0 < e1 ? e0 : e1;
+				bandHi = e0 < e1 ? e1 : e0;
+			} else if ( da * uy < 0 || da * uy > length ) {
+				bandHi = Float.NEGATIVE_INFINITY;
+			}
+			// across the segment: -radius <= ( x - ax ) * uy - da * ux <= radius
+			if ( uy != 0 ) {
+				float s0 = ax + ( da * ux - radius ) / uy, s1 = ax + ( da * ux + radius ) / uy;
+				if ( s0 > s1 ) { float swap = s0; s0 = s1; s1 = swap; }
+				if ( s0 > bandLo ) { bandLo = s0; }
+				if ( s1 < bandHi ) { bandHi = s1; }
+			} else if ( Math.abs( da * ux ) > radius ) {
+				bandHi = Float.NEGATIVE_INFINITY;
+			}
+			
+			if ( bandLo <= bandHi ) {
+				if ( bandLo < lo ) { lo = bandLo; }
+				if ( bandHi > hi ) { hi = bandHi; }
+			}
+		}
+		
+		span[0] = lo;
+		span[1] = hi;
+		return lo <= hi;
+	}
+	
+	/**
+	 * Sets the bits of row y from x0 up to but not including x1.
+	 */
+	private void fillSpan( int y, int x0, int x1 ) {
+		if ( x0 >= x1 ) {
+			return;
+		}
+		
+		int row = y * wordsPerRow;
+		int first = x0 >>> 6, last = ( x1 - 1 ) >>> 6;
+		long firstMask = -1L << x0;
+		long lastMask = -1L >>> ( 63 - ( ( x1 - 1 ) & 63 ) );
+		
+		if ( first == last ) {
+			bits.put( row + first, bits.get( row + first ) | ( firstMask & lastMask ) );
+		} else {
+			bits.put( row + first, bits.get( row + first ) | firstMask );
+			for ( int w = first + 1; w < last; w++ ) {
+				bits.put( row + w, -1L );
+			}
+			bits.put( row + last, bits.get( row + last ) | lastMask );
+		}
+	}
+	
+	private void clearSpan( int y, int x0, int x1 ) {
+		int row = y * wordsPerRow;
+		
+		for ( int x = x0; x < x1; x++ ) {
+			int i = row + ( x >>> 6 );
+			bits.put( i, bits.get( i ) & ~( 1L << x ) );
+		}
+	}
+}
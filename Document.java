@@ -17,44 +17,103 @@
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
+import java.awt.image.DataBufferInt;
 import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.SplittableRandom;
 import java.util.Vector;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.jhlabs.image.GaussianFilter;
 
 
 public class Document {
-	private PainterlyStyle painterlyStyle;
-	
+	// replaced whole by every setter, so a render takes a consistent
+	// snapshot of it whichever thread changes it
+	private volatile PainterlyStyle painterlyStyle;
 	
-	private final static float[] sobelXMatrix = { 
-			-1.0f, 0.0f, 1.0f,
-			-2.0f, 0.0f , 2.0f,
-			-1.0f, 0.0f, 1.0f };
-	private final static float[] sobelYMatrix = {
-			-1.0f, -2.0f, -1.0f,
-			0f, 0f, 0f,
-			1.0f, 2.0f, 1.0f
-	};
-
-	private class SobelVector {
-		public short x;
-		public short y;
-	};
 	
 	private BufferedImage source, target;
-	private BufferedImage writtenArea;
-	private BufferedImage blurred = null;	
-	private SobelVector[] sobelVector = null;
+	private CoverageMask coverage;
+	private ErrorMap errorMap;
+	
+	// raw TYPE_INT_ARGB pixels of source and target
+	private int[] sourcePixels;
+	private IntBuffer targetPixels;
+	
+	// where the target, coverage masks and gradient fields are kept
+	private BufferAllocator bufferAllocator = BufferAllocator.HEAP;
+	private GradientField gradientField = null;
+	
+	// off by default; only documents that render the same source again use it
+	private AnalysisCache analysisCache = new AnalysisCache( 0 );
+	
+	// finished paintings, looked up by the digest of the source's pixels
+	private RenderCache renderCache = null;
+	private byte[] sourceDigest = null;
+	
+	// the style and cancellation token of the render in progress
+	private PainterlyStyle renderStyle;
+	private CancellationToken cancellation;
+	
+	// the part of the target being repainted
+	private Rectangle dirtyRegion;
+	
+	// statistics of the render and the layer in progress
+	private RenderStats renderStats;
+	private RenderStats.Layer layerStats;
+	private RenderMonitor.LayerEvent layerEvent;
+	private long layerStart;
+	private RenderStats lastRenderStats = null;
+	
+	// the strokes of the full render in progress and of the last one
+	private boolean recordStrokes = false;
+	private StrokeBuffer recording = null;
+	private StrokeBuffer recordedStrokes = null;
+	
+	// number of strokes painted between checks for cancellation
+	private final static int STROKE_BATCH = 64;
+	
+	// edges are traced in opaque black with the smallest brush
+	private final static float EDGE_BRUSH_SIZE = 2.0f;
+	private final static int EDGE_COLOR = 0xff000000;
+	
+	// strokes traced before they are handed to the painter thread
+	private final static int PIPELINE_BATCH = 1024;
+	
+	private int parallelism = 1;
+	private ForkJoinPool pool = null;
+	private ExecutorService painter = null;
+	
+	// the canvas tracing reads while the painter thread paints the target
+	private IntBuffer snapshotPixels = null;
+	private CoverageMask snapshotCoverage = null;
+	
+	// quick renders of a shrunk copy of the source, see doPreview()
+	private Document preview = null;
+	private int previewDivisor = 0;
+	private volatile BufferedImage previewImage = null;
+	private volatile boolean previewShown = false;
+	
+	// how the source was read, when it came from a file
+	private ImageInput sourceInput = null;
 	
 	private List<StateChangeListener> _stateChangeListeners = new Vector<StateChangeListener>();
 	
@@ -63,193 +122,901 @@ public class Document {
 		setPredefinedStyle( PainterlyStyle.IMPRESSIONIST_STYLE );
 	}
 	
+	/**
+	 * Loads the file as the source, leaving the document empty if it cannot
+	 * be read.
+	 */
 	public void selectSourceFile( String filename ) {
 		try {
-			source = ImageIO.read( new File( filename ) );
-			target = new BufferedImage( source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB );
-			writtenArea = new BufferedImage( source.getWidth(), source.getHeight(), BufferedImage.TYPE_BYTE_BINARY );
-			
-			sobelVector = new SobelVector[source.getWidth() * source.getHeight()];
-			for ( int i = 0; i < sobelVector.length; i++ ) {
-				sobelVector[i] = new SobelVector();
-			}
+			loadSourceFile( new File( filename ) );
 		} catch ( Exception e ) {
+			setSourceImage( null );
+		}
+	}
+	
+	/**
+	 * Loads the file as the source.
+	 * 
+	 * @throws IOException if the file cannot be read, leaving the source as
+	 * it was
+	 */
+	public void loadSourceFile( File file ) throws IOException {
+		ImageInput input = new ImageInput();
+		setSourceImage( input.read( file ) );
+		sourceInput = input;
+	}
+	
+	/**
+	 * Returns how the current source was read and how long it took, or null
+	 * if it was not read from a file.
+	 */
+	public ImageInput getSourceInput() {
+		return sourceInput;
+	}
+	
+	/**
+	 * Makes the image the source of later renders and gives the document a
+	 * blank target of the same size. A null image leaves the document empty.
+	 */
+	public void setSourceImage( BufferedImage image ) {
+		if ( image != null ) {
+			source = ImageInput.toIntArgb( image );
+			targetPixels = bufferAllocator.allocateInts( source.getWidth() * source.getHeight() );
+			target = BufferAllocator.createArgbImage( source.getWidth(), source.getHeight(), targetPixels );
+			coverage = new CoverageMask( source.getWidth(), source.getHeight(), bufferAllocator );
+			
+			sourcePixels = getPixels( source );
+			errorMap = new ErrorMap( sourcePixels, targetPixels, coverage, bufferAllocator );
+		} else {
 			source = null;
 			target = null;
-			sobelVector = null;
+			coverage = null;
+			errorMap = null;
+			sourcePixels = null;
+			targetPixels = null;
 		}
+		
+		sourceInput = null;
+		preview = null;
+		previewImage = null;
+		previewShown = false;
+		gradientField = null;
+		analysisCache.clear();
+		sourceDigest = null;
+	}
+	
+	private static int[] getPixels( BufferedImage image ) {
+		return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
 	}
 
-	public void saveDocument( String filename ) {
-		try {
-			ImageIO.write( target, "png", new File( filename ) );
-		} catch ( Exception e ) {		
+	/**
+	 * Writes the painting in the format the file's extension names, PNG
+	 * unless it is a TIFF, JPEG or WebP extension.
+	 */
+	public void saveDocument( String filename ) throws IOException {
+		File file = new File( filename );
+		saveDocument( file, ImageOutput.forFile( file ) );
+	}
+	
+	public void saveDocument( File file, ImageOutput output ) throws IOException {
+		if ( target == null ) {
+			throw new IOException( "There is no painting to save" );
 		}
+		output.write( ImageOutput.opaque( target ), file );
 	}
 	
 	/* Painterly Rendering stuff */
 
-	private short doConvolution( int x, int y, BufferedImage source, float[] convolve ) {
-		short value = 0;
-		for ( int i = 0; i < 3; i++ ) {
-			for ( int j = 0; j < 3; j++ ) {
-				try {
-					int intensity = new Color( source.getRGB( x + i - 1, y + j - 1 ) ).getBlue();
-					
-					value += intensity * convolve[j*3+i];
-				} catch ( Exception e ) {
-					// if we catch an exception, then
-					// probably we are out of bounds, so just ignore it
-				}
-			}
+	/**
+	 * Traces the strongest edges in black and returns the pixels the edge
+	 * strokes covered.
+	 * 
+	 * Every pixel whose gradient is at least the edge threshold, as a
+	 * percentage of the largest gradient, starts a stroke unless an earlier
+	 * edge stroke already covers it. Strokes follow the edge until the
+	 * gradient drops below the threshold. The gradient field is read as it
+	 * is, so the one in the analysis cache is never copied or changed.
+	 */
+	private CoverageMask renderEdges() {
+		CoverageMask edges = new CoverageMask( source.getWidth(), source.getHeight(), bufferAllocator );
+		if ( !renderStyle.getDrawEdges() || gradientField == null ) {
+			return edges;
 		}
-		return value;
-	}
-	
-	private void calculateSobelVectors( BufferedImage luma ) {
-		int width = luma.getWidth();
-		int height = luma.getHeight();
 		
-		for ( int y = 0; y < height; ++y ) {
-			for ( int x = 0; x < width; ++x ) {
-				SobelVector v = sobelVector[y*width+x];
+		long start = System.nanoTime(), traceNanos = 0;
+		float minMagnitude = gradientField.getMaxMagnitude() * renderStyle.getEdgeThreshold() / 100.0f;
+		float radius = EDGE_BRUSH_SIZE / 2;
+		
+		// edges starting within a brush of the region, as the other layers'
+		// strokes do
+		Rectangle area = getScanArea( 1, EDGE_BRUSH_SIZE ).intersection( new Rectangle( 0, 0, source.getWidth(), source.getHeight() ) );
+		
+		StrokeBuffer strokes = new StrokeBuffer();
+		for ( int y = area.y; y < area.y + area.height; y++ ) {
+			cancellation.checkCancelled();
+			
+			for ( int x = area.x; x < area.x + area.width; x++ ) {
+				float magnitude = gradientField.getMagnitude( x, y );
+				if ( magnitude == 0.0f || magnitude < minMagnitude || edges.isSet( x, y ) ) {
+					continue;
+				}
+				
+				long traceStart = System.nanoTime();
+				int points = traceEdge( x, y, minMagnitude, strokes );
 				
-				v.x = doConvolution( x, y, luma, sobelXMatrix );
-				v.y = doConvolution( x, y, luma, sobelYMatrix );
+				// marked as it is traced, so later starts along the same edge
+				// are skipped
+				int first = strokes.getFirstPoint( strokes.size() );
+				for ( int i = first; i < first + points; i++ ) {
+					int from = Math.max( i - 1, first );
+					edges.fillCapsule( strokes.getX( from ), strokes.getY( from ), strokes.getX( i ), strokes.getY( i ), radius );
+				}
+				
+				// a lone pixel of edge is left out, but tracing it still took time
+				long traced = System.nanoTime() - traceStart;
+				if ( points > 1 ) {
+					strokes.endStroke( EDGE_COLOR, EDGE_BRUSH_SIZE );
+					layerStats.addStroke( (long)( ( points - 1 ) * EDGE_BRUSH_SIZE ), traced );
+				} else {
+					strokes.discardStroke();
+					layerStats.addTrace( traced );
+				}
+				traceNanos += traced;
 			}
 		}
-	}
-
-	private void renderEdges() {
-		if ( !getDrawEdges() ) {
-			return;
-		}
+		layerStats.addScan( System.nanoTime() - start - traceNanos );
 		
-		{
-			Graphics2D g = writtenArea.createGraphics();
-			g.setBackground( Color.black );
-			g.clearRect( 0, 0, writtenArea.getWidth(), writtenArea.getHeight() );
+		// paint against the edge mask, keeping the real coverage intact for
+		// later region renders
+		CoverageMask coverageTmp = coverage;
+		coverage = edges;
+		try {
+			paintStrokes( strokes );
+		} finally {
+			coverage = coverageTmp;
 		}
-				
-		BufferedImage sourceTmp = source;
+		record( strokes );
 		
-		BufferedImage blackSource = new BufferedImage( source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB );
-		Graphics2D g = blackSource.createGraphics();
-		g.setBackground( Color.black );
-		g.clearRect( 0, 0, blackSource.getWidth(), blackSource.getHeight() );
-		source = blackSource;
+		return edges;
+	}
+	
+	/**
+	 * Follows the normals of the gradient from an edge pixel until the
+	 * gradient drops below the threshold, the way traceStroke() follows
+	 * them, appending the control points to the buffer, and returns how
+	 * many there are.
+	 */
+	private int traceEdge( int x, int y, float minMagnitude, StrokeBuffer strokes ) {
+		float curvature = renderStyle.getCurvatureFilter();
+		boolean interpolate = renderStyle.getInterpolateGradients();
 		
-		float maxGradMag = Float.MIN_VALUE;
+		float currentX = x, currentY = y;
+		float lastX = 0.0f, lastY = 0.0f;
 		
-		for ( int x = 0; x < source.getWidth(); x++ ) {
-			for ( int y = 0; y < source.getHeight(); y++ ) {
-				float gradmag = getGradientMagnitude( new Point2D.Float( x, y ) );
-				if ( gradmag > maxGradMag ) maxGradMag = gradmag;
-			}
-		}
+		strokes.addPoint( currentX, currentY );
+		int points = 1;
 		
-		for ( int x = 0; x < source.getWidth(); x++ ) {
-			for ( int y = 0; y < source.getHeight(); y++ ) {
-				float gradmag = getGradientMagnitude( new Point2D.Float( x, y ) );
-				
-				if ( gradmag < maxGradMag * getEdgeThreshold()/100.0f ) {
-					SobelVector sV = sobelVector[y*source.getWidth()+x]; 
-					sV.x = 0;
-					sV.y = 0;
-				}
+		for ( int i = 1; i < renderStyle.getMaximumStrokeLength(); i++ ) {
+			int px = (int)currentX, py = (int)currentY;
+			
+			float magnitude, unitX, unitY;
+			if ( interpolate ) {
+				float gX = gradientField.getInterpolatedX( currentX, currentY );
+				float gY = gradientField.getInterpolatedY( currentX, currentY );
+				magnitude = (float)Math.sqrt( gX * gX + gY * gY );
+				unitX = gX / magnitude;
+				unitY = gY / magnitude;
+			} else {
+				magnitude = gradientField.getMagnitude( px, py );
+				unitX = gradientField.getUnitX( px, py );
+				unitY = gradientField.getUnitY( px, py );
 			}
+			if ( magnitude == 0.0f || magnitude < minMagnitude ) {
+				break;
+			}
+			
+			float deltaX = -unitY, deltaY = unitX;
+			if ( lastX * deltaX + lastY * deltaY < 0 ) {
+				deltaX = -deltaX;
+				deltaY = -deltaY;
+			}
+			
+			deltaX = curvature * deltaX + ( 1 - curvature ) * lastX;
+			deltaY = curvature * deltaY + ( 1 - curvature ) * lastY;
+			
+			currentX += EDGE_BRUSH_SIZE * deltaX;
+			currentY += EDGE_BRUSH_SIZE * deltaY;
+			
+			if ( currentX < 0.0f || currentX >= source.getWidth() ||
+					currentY < 0.0f || currentY >= source.getHeight() ) {
+				break;
+			}
+			
+			lastX = deltaX;
+			lastY = deltaY;
+			
+			strokes.addPoint( currentX, currentY );
+			points++;
 		}
 		
-		doDrawDot = false;
-		paintLayer( 2.0f );
-		doDrawDot = true;
-		
-		source = sourceTmp;
+		return points;
+	}
+	
+	public RenderStats doPainterly() {
+		return doPainterly( new CancellationToken() );
 	}
 	
-	public void doPainterly() {
+	/**
+	 * Paints the source image into the target image, polling the token
+	 * between layers and between batches of strokes. Listeners are told
+	 * about each finished layer as it lands, so the target can be shown
+	 * while it is still being painted.
+	 * 
+	 * @return where the time went, or null if there was nothing to paint or
+	 *         painting failed
+	 * @throws CancellationException if the token was cancelled; the target is
+	 *         then left partially painted
+	 */
+	public RenderStats doPainterly( CancellationToken token ) {
+		return doPainterly( null, token );
+	}
+	
+	public RenderStats doPainterly( Rectangle region ) {
+		return doPainterly( region, new CancellationToken() );
+	}
+	
+	/**
+	 * Repaints only the given region of the target, leaving the rest of the
+	 * painting alone. The region is cleared and every layer is re-run over
+	 * the grid cells within a brush radius of it. Strokes started there are
+	 * not clipped, so they run over the untouched paint around the region
+	 * the same way strokes of a full render overlap each other.
+	 * 
+	 * @param region the area to repaint, or null to paint the whole image
+	 */
+	public RenderStats doPainterly( Rectangle region, CancellationToken token ) {
+		beginRender( token );
+		
+		RenderMonitor monitor = RenderMonitor.getInstance();
+		RenderMonitor.RenderEvent event = monitor.renderStarted();
+		long start = System.nanoTime();
+		
+		int layerCount = 0;
+		for ( int i = renderStyle.getMaximumBrushSize(); i > 1; i/=2 ) {
+			layerCount++;
+		}
+		if ( renderStyle.getDrawEdges() ) {
+			layerCount++;
+		}
+		
 		try {
+			cancellation.checkCancelled();
+			
+			Rectangle bounds = new Rectangle( 0, 0, source.getWidth(), source.getHeight() );
+			dirtyRegion = region == null ? bounds : region.intersection( bounds );
+			if ( dirtyRegion.isEmpty() ) {
+				return null;
+			}
+			
+			renderStats = new RenderStats( source.getWidth(), source.getHeight(), renderStyle );
+			
+			// a region render patches a painting whose strokes are partly
+			// erased, so only full renders are recorded
+			recordedStrokes = null;
+			recording = recordStrokes && dirtyRegion.equals( bounds ) ? new StrokeBuffer() : null;
+			
+			// a cached painting has no strokes to record
+			String cacheKey = null;
+			if ( renderCache != null && dirtyRegion.equals( bounds ) && !recordStrokes ) {
+				cacheKey = getCacheKey();
+				if ( paintFromCache( cacheKey ) ) {
+					renderStats.setCached( true );
+					fireLayerPaintedEvent( layerCount, layerCount );
+					return finishRender( event, start );
+				}
+			}
+			
 			{
 				Graphics2D g = target.createGraphics();
 				g.setBackground( Color.white );
-				g.clearRect( 0, 0, target.getWidth(), target.getHeight() );
+				g.clearRect( dirtyRegion.x, dirtyRegion.y, dirtyRegion.width, dirtyRegion.height );
 			}
 			
-			{
-				Graphics2D g = writtenArea.createGraphics();
-				g.setBackground( Color.black );
-				g.clearRect( 0, 0, writtenArea.getWidth(), writtenArea.getHeight() );
-			}
+			coverage.clear( dirtyRegion );
+			errorMap.markDirty( dirtyRegion );
 			
-			for ( int i = getMaximumBrushSize(); i > 1; i/=2 ) {
-				BufferedImageOp gaussian = new GaussianFilter( (float)i * getBlurFactor() );
-				
-				blurred = gaussian.filter( source, null );
+			SplittableRandom random = new SplittableRandom( renderStyle.getSeed() );
+			int layer = 0;
+			gradientField = null;
+			
+			for ( int i = renderStyle.getMaximumBrushSize(); i > 1; i/=2 ) {
+				cancellation.checkCancelled();
+				startLayer( i, false );
 				
-				BufferedImage luma = new BufferedImage( blurred.getWidth(), blurred.getHeight(), BufferedImage.TYPE_BYTE_GRAY );
-				luma.createGraphics().drawImage( blurred, 0, 0, null );
+				analyseLayer( i );
 				
-				calculateSobelVectors( luma );
+				paintLayer( (float)i, random.split() );
 				
-				paintLayer( (float)i );
+				finishLayer( coverage );
+				fireLayerPaintedEvent( ++layer, layerCount );
 			}
 
-			renderEdges();
+			if ( renderStyle.getDrawEdges() ) {
+				cancellation.checkCancelled();
+				startLayer( 2, true );
+				finishLayer( renderEdges() );
+				fireLayerPaintedEvent( ++layer, layerCount );
+			}
 			
-			fireStateChangeEvent();
+			if ( cacheKey != null ) {
+				int[] painted = new int[source.getWidth() * source.getHeight()];
+				IntBuffer pixels = targetPixels.duplicate();
+				pixels.clear();
+				pixels.get( painted );
+				renderCache.put( cacheKey, painted, source.getWidth(), source.getHeight() );
+			}
+			
+			return finishRender( event, start );
+		} catch ( CancellationException e ) {
+			renderCancelled( event, start );
+			throw e;
+		} catch ( ExecutionException e ) {
+			if ( e.getCause() instanceof CancellationException ) {
+				renderCancelled( event, start );
+				throw (CancellationException)e.getCause();
+			}
+			clearTarget();
 		} catch ( Exception e ) {
+			clearTarget();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Paints a copy of the source shrunk by the divisor, with brushes shrunk
+	 * to match, in a fraction of the time of a full render. Grid sizes,
+	 * stroke lengths and blurs are measured in brushes, so they follow the
+	 * brushes. Brushes stop at the two pixels of the smallest layer, so a
+	 * preview has fewer layers than the full render, and it is painted with
+	 * the software rasterizer whatever the document uses.
+	 * 
+	 * The target is left alone: the preview is kept in getPreviewImage()
+	 * and isPreviewShown() is true from the time it is painted until the
+	 * next render of the target completes. The shrunk source and its
+	 * analysis are kept between previews with the same divisor.
+	 * 
+	 * @throws CancellationException if the token was cancelled
+	 */
+	public RenderStats doPreview( int divisor, CancellationToken token ) {
+		if ( divisor < 1 ) {
+			throw new IllegalArgumentException( "Preview divisor " + divisor + " is less than 1" );
+		}
+		if ( source == null ) {
+			return null;
+		}
+		if ( preview == null || previewDivisor != divisor ) {
+			preview = new Document();
+			preview.setAnalysisCacheBudget( getAnalysisCacheBudget() );
+			preview.setSourceImage( shrink( source, divisor ) );
+			previewDivisor = divisor;
+		}
+		
+		PainterlyStyle style = painterlyStyle;
+		preview.setStyle( new PainterlyStyle.Builder( style )
+			.setMaximumBrushSize( Math.max( style.getMaximumBrushSize() / divisor, 2 ) )
+			.build() );
+		
+		// a preview's strokes are all of the smallest brushes, which the
+		// software rasterizer paints about twice as fast as Java2D
+		preview.setUseStrokeRasterizer( true );
+		
+		RenderStats stats = preview.doPainterly( token );
+		if ( stats != null ) {
+			// a copy, so a later preview that is cancelled part way through
+			// never shows
+			BufferedImage painted = preview.getTargetImage();
+			BufferedImage copy = new BufferedImage( painted.getWidth(), painted.getHeight(), BufferedImage.TYPE_INT_ARGB );
+			painted.copyData( copy.getRaster() );
+			previewImage = copy;
+			previewShown = true;
+			fireStateChangeEvent();
+		}
+		
+		return stats;
+	}
+	
+	/**
+	 * Returns the last preview completed, the size of the shrunk source, or
+	 * null if there is none.
+	 */
+	public BufferedImage getPreviewImage() {
+		return previewImage;
+	}
+	
+	/**
+	 * Returns true if the last preview is newer than the target.
+	 */
+	public boolean isPreviewShown() {
+		return previewShown;
+	}
+	
+	/**
+	 * Shrinks the image in halves with bilinear filtering, each of which
+	 * averages blocks of two by two pixels, so every pixel of the image
+	 * counts; one bilinear step to a much smaller size would skip most.
+	 */
+	private static BufferedImage shrink( BufferedImage image, int divisor ) {
+		int width = Math.max( image.getWidth() / divisor, 1 );
+		int height = Math.max( image.getHeight() / divisor, 1 );
+		
+		BufferedImage shrunk = image;
+		while ( shrunk.getWidth() > width || shrunk.getHeight() > height ) {
+			int w = Math.max( shrunk.getWidth() / 2, width );
+			int h = Math.max( shrunk.getHeight() / 2, height );
+			
+			BufferedImage half = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+			Graphics2D g = half.createGraphics();
+			g.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+			g.drawImage( shrunk, 0, 0, w, h, null );
+			g.dispose();
+			shrunk = half;
+		}
+		
+		return shrunk;
+	}
+	
+	private RenderStats finishRender( RenderMonitor.RenderEvent event, long start ) {
+		renderStats.finish( System.nanoTime() - start, false );
+		RenderMonitor.getInstance().renderFinished( event, renderStats );
+		lastRenderStats = renderStats;
+		recordedStrokes = recording;
+		recording = null;
+		previewShown = false;
+		
+		fireRenderFinishedEvent( renderStats );
+		fireStateChangeEvent();
+		
+		return renderStats;
+	}
+	
+	private String getCacheKey() {
+		if ( sourceDigest == null ) {
+			sourceDigest = RenderCache.digest( sourcePixels );
+		}
+		return RenderCache.key( sourceDigest, source.getWidth(), source.getHeight(), renderStyle, parallelism > 1, useStrokeRasterizer );
+	}
+	
+	/**
+	 * Copies the cached painting into the target, if there is one. Its
+	 * strokes are unknown, so the whole target counts as covered.
+	 */
+	private boolean paintFromCache( String key ) {
+		int[] painted = renderCache.get( key, source.getWidth(), source.getHeight() );
+		if ( painted == null ) {
+			return false;
+		}
+		
+		IntBuffer pixels = targetPixels.duplicate();
+		pixels.clear();
+		pixels.put( painted );
+		coverage.fill();
+		errorMap.markDirty( 0, 0, source.getWidth(), source.getHeight() );
+		
+		return true;
+	}
+	
+	private void renderCancelled( RenderMonitor.RenderEvent event, long start ) {
+		if ( renderStats != null ) {
+			renderStats.finish( System.nanoTime() - start, true );
+			RenderMonitor.getInstance().renderFinished( event, renderStats );
+		}
+	}
+	
+	private void startLayer( int brushSize, boolean edgePass ) {
+		layerStats = renderStats.addLayer( brushSize, edgePass );
+		layerEvent = RenderMonitor.getInstance().layerStarted();
+		layerStart = System.nanoTime();
+	}
+	
+	private void finishLayer( CoverageMask layerCoverage ) {
+		layerStats.finish( System.nanoTime() - layerStart, layerCoverage.countSet() );
+		RenderMonitor.getInstance().layerFinished( layerEvent, layerStats );
+	}
+	
+	private void beginRender( CancellationToken token ) {
+		cancellation = token;
+		renderStats = null;
+		renderStyle = painterlyStyle;
+	}
+	
+	/**
+	 * Puts the document in the state a full render is in just before it
+	 * paints the layer with the given brush, leaving the target as it is.
+	 * Used by PainterlyBenchmark to time the stages of a layer one by one.
+	 */
+	void beginLayer( int brushSize ) {
+		beginRender( new CancellationToken() );
+		dirtyRegion = new Rectangle( 0, 0, source.getWidth(), source.getHeight() );
+		renderStats = new RenderStats( source.getWidth(), source.getHeight(), renderStyle );
+		layerStats = renderStats.addLayer( brushSize, false );
+		analyseLayer( brushSize );
+	}
+	
+	/**
+	 * Makes the next scan recompute the whole error map, as the scan after
+	 * a layer that painted everywhere does. Used by PainterlyBenchmark.
+	 */
+	void invalidateErrorMap() {
+		errorMap.markDirty( 0, 0, source.getWidth(), source.getHeight() );
+	}
+	
+	/**
+	 * Makes gradientField hold the analysis of the source for the layer
+	 * painted with the given brush, reusing a cached copy if possible.
+	 */
+	private void analyseLayer( int brushSize ) {
+		GradientField cached = analysisCache.get( source, brushSize, renderStyle.getBlurFactor() );
+		
+		if ( cached == null ) {
+			long start = System.nanoTime();
+			BufferedImage blurred = blur( source, brushSize, renderStyle.getBlurFactor() );
+			long blurEnd = System.nanoTime();
+			
+			BufferedImage luma = toLuma( blurred );
+			long lumaEnd = System.nanoTime();
+			
+			gradientField = new GradientField( source.getWidth(), source.getHeight(), bufferAllocator );
+			gradientField.computeSobel( luma );
+			
+			layerStats.addBlur( blurEnd - start );
+			layerStats.addLuma( lumaEnd - blurEnd );
+			layerStats.addSobel( System.nanoTime() - lumaEnd );
+			
+			analysisCache.put( source, brushSize, renderStyle.getBlurFactor(), gradientField );
+		} else {
+			gradientField = cached;
+			layerStats.setAnalysisCached( true );
+		}
+	}
+	
+	static BufferedImage blur( BufferedImage image, int brushSize, float blurFactor ) {
+		BufferedImageOp gaussian = new GaussianFilter( (float)brushSize * blurFactor );
+		
+		return gaussian.filter( image, null );
+	}
+	
+	static BufferedImage toLuma( BufferedImage image ) {
+		BufferedImage luma = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY );
+		Graphics2D g = luma.createGraphics();
+		g.drawImage( image, 0, 0, null );
+		g.dispose();
+		
+		return luma;
+	}
+	
+	/**
+	 * Returns the rectangle grown by the margin on every side, clipped to the
+	 * source image.
+	 */
+	private Rectangle grow( Rectangle r, int margin ) {
+		Rectangle grown = new Rectangle( r );
+		grown.grow( margin, margin );
+		
+		return grown.intersection( new Rectangle( 0, 0, source.getWidth(), source.getHeight() ) );
+	}
+	
+	/**
+	 * Returns the area whose grid cells are scanned for a layer: the dirty
+	 * region plus a brush radius.
+	 */
+	private Rectangle getScanArea( int grid, float brushSize ) {
+		Rectangle area = grow( dirtyRegion, (int)Math.ceil( brushSize / 2 ) );
+		
+		// keep cells aligned to the same grid as a full render
+		int x0 = ( area.x / grid ) * grid;
+		int y0 = ( area.y / grid ) * grid;
+		
+		return new Rectangle( x0, y0, area.x + area.width - x0, area.y + area.height - y0 );
+	}
+	
+	private void clearTarget() {
+		if ( target != null ) {
 			Graphics2D g = target.createGraphics();
 			g.setBackground( new Color( 255, 255, 255 ) );
 			g.clearRect( 0, 0, target.getWidth(), target.getHeight() );
+			errorMap.markDirty( 0, 0, target.getWidth(), target.getHeight() );
 		}
 	}
 	
-	private void paintLayer( float brushSize ) {
-		int grid = Math.round( getGridSize() * brushSize );
-		int gridsqr = grid * grid;
+	void paintLayer( float brushSize, SplittableRandom random ) throws InterruptedException, ExecutionException {
+		if ( parallelism > 1 ) {
+			paintLayerParallel( brushSize, random );
+			return;
+		}
 		
-		Vector<Point2D.Float> strokeList = new Vector<Point2D.Float>();
+		Vector<Point2D.Float> strokeList = findStrokeStarts( brushSize, random );
+		
+		if ( painter != null ) {
+			paintLayerPipelined( brushSize, strokeList, random );
+			return;
+		}
+		
+		StrokeBuffer strokes = new StrokeBuffer();
+		traceStrokes( brushSize, strokeList, random, strokes, strokeList.size() );
+		paintStrokes( strokes );
+		record( strokes );
+	}
+	
+	private void record( StrokeBuffer strokes ) {
+		if ( recording != null ) {
+			recording.addAll( strokes );
+		}
+	}
+	
+	/**
+	 * Traces the layer's strokes in batches and hands each batch to the
+	 * painter thread, so painting one batch overlaps tracing the next.
+	 * Tracing reads a copy of the canvas as it was before the layer, which
+	 * is what it would see if all strokes were traced before any was
+	 * painted, so the painting does not depend on how the threads interleave.
+	 */
+	private void paintLayerPipelined( float brushSize, Vector<Point2D.Float> strokeList, SplittableRandom random ) throws InterruptedException, ExecutionException {
+		snapshotPixels = bufferAllocator.allocateInts( targetPixels.capacity() );
+		snapshotPixels.put( targetPixels.duplicate() );
+		snapshotCoverage = new CoverageMask( coverage, bufferAllocator );
 		
-		for ( int x = 0; x < source.getWidth(); x += grid ) {
-			for ( int y = 0; y < source.getHeight(); y+= grid ) {
-				float areaError = 0.0f;
-				float worstError = Float.MIN_VALUE;
-				int wEX = x, wEY = y;
+		List<Future<Void>> painted = new ArrayList<Future<Void>>();
+		try {
+			while ( !strokeList.isEmpty() ) {
+				final StrokeBuffer strokes = new StrokeBuffer();
+				traceStrokes( brushSize, strokeList, random, strokes, PIPELINE_BATCH );
+				record( strokes );
 				
-				for ( int eY = y - grid/2; eY < y + grid/2; eY++ ) {
-					for ( int eX = x - grid/2; eX < x + grid/2; eX++  ) {
-						int jitteredX = eX + (int)((Math.random() - 0.5) * grid );
-						int jitteredY = eY + (int)((Math.random() - 0.5) * grid );
-		
-						if ( jitteredX < 0 ) { jitteredX = 0; }
-						if ( jitteredX >= source.getWidth() ) { jitteredX = source.getWidth() - 1; }
-						
-						if ( jitteredY < 0 ) { jitteredY = 0; }
-						if ( jitteredY >= source.getHeight() ) { jitteredY = source.getHeight() - 1; }
-						
-						float difference = getDifference( jitteredX, jitteredY );
-						
-						if ( difference > worstError ) {
-							worstError = difference;
-							wEX = jitteredX;
-							wEY = jitteredY;
-						}
-						
-						areaError += difference;
+				painted.add( painter.submit( new Callable<Void>() {
+					public Void call() {
+						paintStrokes( strokes );
+						return null;
 					}
+				} ) );
+			}
+			for ( Future<Void> f : painted ) {
+				f.get();
+			}
+		} finally {
+			// when tracing fails or is cancelled, wait for the painter anyway
+			// so it never paints into the next render
+			for ( Future<Void> f : painted ) {
+				try {
+					f.get();
+				} catch ( ExecutionException e ) {
+					// reported by the loop above, or superseded by the tracer's failure
 				}
+			}
+			snapshotPixels = null;
+			snapshotCoverage = null;
+		}
+	}
+	
+	/**
+	 * Traces strokes from starts drawn at random from the list, removing
+	 * them, until count strokes have been added to the buffer or the list
+	 * is empty.
+	 */
+	private void traceStrokes( float brushSize, List<Point2D.Float> strokeList, SplittableRandom random, StrokeBuffer strokes, int count ) {
+		for ( int n = 0; n < count && !strokeList.isEmpty(); n++ ) {
+			if ( strokeList.size() % STROKE_BATCH == 0 ) {
+				cancellation.checkCancelled();
+			}
+			
+			Point2D.Float initial = strokeList.remove( random.nextInt( strokeList.size() ) );
+			long start = System.nanoTime();
+			int strokeColor = createStrokeColor( (int)initial.getX(), (int)initial.getY(), random ).getRGB();
+			int points = traceStroke( brushSize, initial.x, initial.y, strokeColor, strokes );
+			strokes.endStroke( strokeColor, brushSize );
+			
+			layerStats.addStroke( (long)( ( points - 1 ) * brushSize ), System.nanoTime() - start );
+		}
+	}
+	
+	/**
+	 * Paints the strokes of the buffer in order.
+	 */
+	void paintStrokes( StrokeBuffer strokes ) {
+		for ( int i = 0; i < strokes.size(); i++ ) {
+			if ( i % STROKE_BATCH == 0 ) {
+				cancellation.checkCancelled();
+			}
+			
+			long start = System.nanoTime();
+			paintStroke( strokes, i );
+			layerStats.addRasterize( System.nanoTime() - start );
+		}
+	}
+	
+	/**
+	 * Scans the grid cells of the layer and returns the points strokes start
+	 * from, in scan order.
+	 */
+	Vector<Point2D.Float> findStrokeStarts( float brushSize, SplittableRandom random ) {
+		long start = System.nanoTime();
+		int grid = Math.round( renderStyle.getGridSize() * brushSize );
+		Rectangle scanArea = getScanArea( grid, brushSize );
+		
+		errorMap.update();
+		
+		Vector<Point2D.Float> strokeList = new Vector<Point2D.Float>();
+		
+		for ( int x = scanArea.x; x < scanArea.x + scanArea.width; x += grid ) {
+			for ( int y = scanArea.y; y < scanArea.y + scanArea.height; y+= grid ) {
+				Point2D.Float strokeStart = findStrokeStart( x, y, grid, random );
+				
+				if ( strokeStart != null ) {
+					strokeList.add( strokeStart );
+				}
+			}
+		}
+		
+		layerStats.addScan( System.nanoTime() - start );
+		return strokeList;
+	}
+	
+	/**
+	 * Returns null if the average error of the grid cell centred on (x, y)
+	 * is within the threshold, which the error map tells without visiting
+	 * the cell. Otherwise the cell is sampled and the point of worst error
+	 * is returned.
+	 */
+	private Point2D.Float findStrokeStart( int x, int y, int grid, SplittableRandom random ) {
+		int x0 = Math.max( x - grid/2, 0 ), x1 = Math.min( x + grid/2, source.getWidth() );
+		int y0 = Math.max( y - grid/2, 0 ), y1 = Math.min( y + grid/2, source.getHeight() );
+		if ( x0 >= x1 || y0 >= y1 || errorMap.getAreaError( x0, y0, x1, y1 ) <= renderStyle.getThreshold() ) {
+			return null;
+		}
+		
+		float worstError = Float.MIN_VALUE;
+		int wEX = x, wEY = y;
+		
+		for ( int eY = y - grid/2; eY < y + grid/2; eY++ ) {
+			for ( int eX = x - grid/2; eX < x + grid/2; eX++  ) {
+				int jitteredX = eX + (int)((random.nextDouble() - 0.5) * grid );
+				int jitteredY = eY + (int)((random.nextDouble() - 0.5) * grid );
+
+				if ( jitteredX < 0 ) { jitteredX = 0; }
+				if ( jitteredX >= source.getWidth() ) { jitteredX = source.getWidth() - 1; }
 				
-				areaError /= (float)gridsqr;
+				if ( jitteredY < 0 ) { jitteredY = 0; }
+				if ( jitteredY >= source.getHeight() ) { jitteredY = source.getHeight() - 1; }
 				
-				if ( areaError > getThreshold() ) {
-					strokeList.add( new Point2D.Float( (float)wEX, (float)wEY ) );
+				float difference = getDifference( jitteredX, jitteredY );
+				
+				if ( difference > worstError ) {
+					worstError = difference;
+					wEX = jitteredX;
+					wEY = jitteredY;
 				}
 			}
 		}
 		
-		while ( !strokeList.isEmpty() ) {
-			Point2D.Float obj = strokeList.remove( (int)Math.floor( Math.random() * strokeList.size() ) );
-			makeStroke( brushSize, obj );
+		return new Point2D.Float( (float)wEX, (float)wEY );
+	}
+	
+	/* Parallel painting */
+	
+	// the coverage mask packs 64 pixels into a long, so tiles painted at the
+	// same time are kept at least this far apart to never share a word
+	private final static int TILE_GUARD = 64;
+	
+	private static class Tile {
+		public int x0, y0, x1, y1;
+		public int scanX0, scanY0, scanX1, scanY1;
+		public SplittableRandom random;
+		public List<Point2D.Float> strokeList = new ArrayList<Point2D.Float>();
+		public StrokeBuffer strokes = new StrokeBuffer();
+	}
+	
+	/**
+	 * Paints a layer by splitting the canvas into tiles that are scanned
+	 * concurrently. Strokes are then painted in four passes over a 2x2
+	 * checkerboard of tiles; a tile is wide enough that no stroke started in
+	 * it can reach a tile of the same colour, so tiles within a pass can paint
+	 * concurrently without touching each other's pixels. Each tile owns its
+	 * own generator, split from the layer's generator in tile order, so the
+	 * result does not depend on the number of threads or on the order in
+	 * which tiles are scheduled.
+	 */
+	private void paintLayerParallel( final float brushSize, SplittableRandom random ) throws InterruptedException, ExecutionException {
+		final int grid = Math.round( renderStyle.getGridSize() * brushSize );
+		Rectangle scanArea = getScanArea( grid, brushSize );
+		
+		// a stroke may start up to one grid cell away from its cell and then
+		// travel maximumStrokeLength brush widths
+		int reach = (int)Math.ceil( ( renderStyle.getMaximumStrokeLength() + 1 ) * brushSize ) + grid;
+		int tileSize = ( ( 2 * reach + TILE_GUARD ) / grid + 1 ) * grid;
+		
+		int tilesX = ( source.getWidth() + tileSize - 1 ) / tileSize;
+		int tilesY = ( source.getHeight() + tileSize - 1 ) / tileSize;
+		
+		List<Callable<Void>> updates = new ArrayList<Callable<Void>>();
+		for ( int ty = 0; ty < errorMap.getTilesY(); ty++ ) {
+			final int row = ty;
+			updates.add( new Callable<Void>() {
+				public Void call() {
+					long start = System.nanoTime();
+					errorMap.update( row );
+					layerStats.addScan( System.nanoTime() - start );
+					return null;
+				}
+			} );
+		}
+		invokeAll( updates );
+		
+		List<List<Tile>> phases = new ArrayList<List<Tile>>();
+		for ( int i = 0; i < 4; i++ ) {
+			phases.add( new ArrayList<Tile>() );
+		}
+		
+		List<Callable<Void>> scans = new ArrayList<Callable<Void>>();
+		for ( int ty = 0; ty < tilesY; ty++ ) {
+			for ( int tx = 0; tx < tilesX; tx++ ) {
+				final Tile tile = new Tile();
+				tile.x0 = tx * tileSize;
+				tile.y0 = ty * tileSize;
+				tile.x1 = Math.min( tile.x0 + tileSize, source.getWidth() );
+				tile.y1 = Math.min( tile.y0 + tileSize, source.getHeight() );
+				
+				// only scan the part of the tile inside the scan area
+				tile.scanX0 = Math.max( tile.x0, scanArea.x );
+				tile.scanY0 = Math.max( tile.y0, scanArea.y );
+				tile.scanX1 = Math.min( tile.x1, scanArea.x + scanArea.width );
+				tile.scanY1 = Math.min( tile.y1, scanArea.y + scanArea.height );
+				tile.random = random.split();
+				
+				phases.get( ( ty % 2 ) * 2 + ( tx % 2 ) ).add( tile );
+				
+				scans.add( new Callable<Void>() {
+					public Void call() {
+						long start = System.nanoTime();
+						for ( int x = tile.scanX0; x < tile.scanX1; x += grid ) {
+							for ( int y = tile.scanY0; y < tile.scanY1; y += grid ) {
+								Point2D.Float strokeStart = findStrokeStart( x, y, grid, tile.random );
+								
+								if ( strokeStart != null ) {
+									tile.strokeList.add( strokeStart );
+								}
+							}
+						}
+						layerStats.addScan( System.nanoTime() - start );
+						return null;
+					}
+				} );
+			}
+		}
+		invokeAll( scans );
+		
+		for ( List<Tile> phase : phases ) {
+			List<Callable<Void>> strokes = new ArrayList<Callable<Void>>();
+			
+			for ( final Tile tile : phase ) {
+				strokes.add( new Callable<Void>() {
+					public Void call() {
+						traceStrokes( brushSize, tile.strokeList, tile.random, tile.strokes, tile.strokeList.size() );
+						paintStrokes( tile.strokes );
+						return null;
+					}
+				} );
+			}
+			invokeAll( strokes );
+			
+			for ( Tile tile : phase ) {
+				record( tile.strokes );
+			}
+		}
+	}
+	
+	private void invokeAll( List<Callable<Void>> tasks ) throws InterruptedException, ExecutionException {
+		for ( Future<Void> f : pool.invokeAll( tasks ) ) {
+			f.get();
 		}
 	}
 
@@ -266,292 +1033,497 @@ public class Document {
 		return v;
 	}
 	
-	Color createStrokeColor( int x, int y ) {
+	Color createStrokeColor( int x, int y, SplittableRandom random ) {
 		Color temp = new Color( source.getRGB( x, y ), true );
 		
-		if ( doDrawDot ) {
-			Color baseStrokeColor = new Color( temp.getRed(), temp.getGreen(), temp.getBlue() );
+		Color baseStrokeColor = new Color( temp.getRed(), temp.getGreen(), temp.getBlue() );
 	
-			float[] hsbvals = new float[3];
-			Color.RGBtoHSB(baseStrokeColor.getRed(), baseStrokeColor.getGreen(), baseStrokeColor.getBlue(), hsbvals);
+		float[] hsbvals = new float[3];
+		Color.RGBtoHSB(baseStrokeColor.getRed(), baseStrokeColor.getGreen(), baseStrokeColor.getBlue(), hsbvals);
 	
-			hsbvals[0] += ( Math.random() - 0.5f ) * getHueJitter();
-			hsbvals[1] += ( Math.random() - 0.5f ) * getSaturationJitter();
-			hsbvals[2] += ( Math.random() - 0.5f ) * getValueJitter();
-			
-			Color jitteredHSB = new Color( Color.HSBtoRGB( 
-					clamp( hsbvals[0], 0.0f, 1.0f ),
-					clamp( hsbvals[1], 0.0f, 1.0f ),
-					clamp( hsbvals[2], 0.0f, 1.0f ) ) );
-			Color jitteredRGB = new Color( 
-					clamp( jitteredHSB.getRed() + (int)(( Math.random() - 0.5f ) * getRedJitter()), 0, 255 ),
-					clamp( jitteredHSB.getGreen() + (int)(( Math.random() - 0.5f ) * getGreenJitter()), 0, 255 ),
-					clamp( jitteredHSB.getBlue() + (int)(( Math.random() - 0.5f ) * getBlueJitter()), 0, 255 ),
-					getColorOpacity() );
+		hsbvals[0] += ( random.nextDouble() - 0.5f ) * renderStyle.getHueJitter();
+		hsbvals[1] += ( random.nextDouble() - 0.5f ) * renderStyle.getSaturationJitter();
+		hsbvals[2] += ( random.nextDouble() - 0.5f ) * renderStyle.getValueJitter();
+		
+		Color jitteredHSB = new Color( Color.HSBtoRGB( 
+				clamp( hsbvals[0], 0.0f, 1.0f ),
+				clamp( hsbvals[1], 0.0f, 1.0f ),
+				clamp( hsbvals[2], 0.0f, 1.0f ) ) );
+		Color jitteredRGB = new Color( 
+				clamp( jitteredHSB.getRed() + (int)(( random.nextDouble() - 0.5f ) * renderStyle.getRedJitter()), 0, 255 ),
+				clamp( jitteredHSB.getGreen() + (int)(( random.nextDouble() - 0.5f ) * renderStyle.getGreenJitter()), 0, 255 ),
+				clamp( jitteredHSB.getBlue() + (int)(( random.nextDouble() - 0.5f ) * renderStyle.getBlueJitter()), 0, 255 ),
+				renderStyle.getColorOpacity() );
+		
+		return jitteredRGB;
+	}
+	
+	private boolean useStrokeRasterizer = false;
+	
+	private final ThreadLocal<StrokeRasterizer> rasterizers = new ThreadLocal<StrokeRasterizer>() {
+		protected StrokeRasterizer initialValue() {
+			return new StrokeRasterizer();
+		}
+	};
+	
+	/**
+	 * Paints stroke i of the buffer with a StrokeRasterizer bound to the
+	 * target, building the same curve as renderStroke.
+	 */
+	void rasterizeStroke( StrokeRasterizer r, StrokeBuffer strokes, int i ) {
+		int first = strokes.getFirstPoint( i ), last = strokes.getFirstPoint( i + 1 ) - 1;
+		float brushSize = strokes.getWidth( i );
+		
+		if ( last > first ) {
+			r.moveTo( (int)strokes.getX( first ), (int)strokes.getY( first ) );
+			for ( int j = first + 1; j < last; j++ ) {
+				r.curveTo( strokes.getX( j - 1 ), strokes.getY( j - 1 ),
+						strokes.getX( j ), strokes.getY( j ),
+						strokes.getX( j + 1 ), strokes.getY( j + 1 ) );
+			}
+			r.lineTo( strokes.getX( last ), strokes.getY( last ) );
 			
-			return jitteredRGB;
+			r.stroke( strokes.getColor( i ), brushSize );
 		} else {
-			return temp;
+			float radius = (int)brushSize / 2.0f;
+			r.fillDisc( (int)strokes.getX( first ) + radius, (int)strokes.getY( first ) + radius, radius, strokes.getColor( i ) );
 		}
 	}
 	
-	private boolean doDrawDot = true;
-	
-	void renderStroke( BufferedImage t, Vector<Point2D.Float> path, Color strokeColor, float brushSize ) {
-		Point2D.Float initial = path.elementAt( 0 );
+	/**
+	 * Paints stroke i of the buffer into the image with Java2D and marks it
+	 * in the mask.
+	 */
+	void renderStroke( BufferedImage t, CoverageMask mask, StrokeBuffer strokes, int i ) {
+		float brushSize = strokes.getWidth( i );
 		
 		Graphics2D g = t.createGraphics();
 
 		g.getRenderingHints().put( RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON );
-		g.setColor( strokeColor );
+		g.setColor( new Color( strokes.getColor( i ), true ) );
 
-//		float halfBrush = brushSize / 2;
-		float halfBrush = 0;
-		if ( path.size() > 1 ) {
-			GeneralPath gp = new GeneralPath();
-
-			gp.moveTo( (int)( initial.x - halfBrush ), (int)( initial.y - halfBrush ) );
-			for ( int i = 1; i < path.size() - 1; i++ ) {
-				Point2D.Float p1 = path.elementAt( i - 1 );
-				Point2D.Float p2 = path.elementAt( i );
-				Point2D.Float p3 = path.elementAt( i + 1 );
-				
-				gp.curveTo( p1.x - halfBrush, p1.y - halfBrush,
-						p2.x - halfBrush, p2.y - halfBrush,
-						p3.x - halfBrush, p3.y - halfBrush);
-			}
-			gp.lineTo( path.elementAt( path.size() - 1 ).x - halfBrush, path.elementAt( path.size() - 1 ).y - halfBrush );
+		if ( !strokes.isDot( i ) ) {
+			GeneralPath gp = strokes.getPath( i );
 			
 			g.setStroke( new BasicStroke( brushSize ) );
 			g.draw( gp );
+			
+			mask.fillStroke( gp, brushSize );
 		} else {
-			if ( doDrawDot ) {
-				g.fillOval( (int)( initial.x - halfBrush ), (int)( initial.y - halfBrush ), 
-						(int)brushSize, (int)brushSize );
-			}
+			int x = (int)strokes.getX( strokes.getFirstPoint( i ) ), y = (int)strokes.getY( strokes.getFirstPoint( i ) );
+			g.fillOval( x, y, (int)brushSize, (int)brushSize );
+			
+			float radius = (int)brushSize / 2.0f;
+			mask.fillDisc( x + radius, y + radius, radius );
 		}
+		g.dispose();
 	}
 	
-	void makeStroke( float brushSize, Point2D.Float initial ) {
-		Vector<Point2D.Float> path = new Vector<Point2D.Float>();
+	/**
+	 * Follows the normals of the gradient from the initial point until the
+	 * stroke's colour stops improving the painting, appending the control
+	 * points of the stroke to the buffer, and returns how many there are.
+	 * The caller ends or discards the stroke. Nothing is allocated, so
+	 * tracing costs the same however many strokes there are.
+	 */
+	int traceStroke( float brushSize, float x, float y, int strokeColor, StrokeBuffer strokes ) {
+		float curvature = renderStyle.getCurvatureFilter();
+		boolean interpolate = renderStyle.getInterpolateGradients();
+		int width = source.getWidth();
 		
-		Point2D.Float current = initial;
-		Point2D.Float lastDelta = new Point2D.Float( 0.0f, 0.0f );
-		Color strokeColor = createStrokeColor( (int)current.getX(), (int)current.getY() );
-
-		path.add( (Point2D.Float)current.clone() );
+		float currentX = x, currentY = y;
+		float lastX = 0.0f, lastY = 0.0f;
+		
+		strokes.addPoint( currentX, currentY );
+		int points = 1;
 		
-		for ( int i = 1; i < getMaximumStrokeLength(); i++ ) {
-			if ( i > getMinimumStrokeLength() && 
-					getDifference( (int)current.x, (int)current.y ) < getDifference( new Color( source.getRGB( (int)current.getX(), (int)current.getY() ), true ), strokeColor ) ) {
+		for ( int i = 1; i < renderStyle.getMaximumStrokeLength(); i++ ) {
+			int px = (int)currentX, py = (int)currentY;
+			
+			if ( i > renderStyle.getMinimumStrokeLength() && 
+					getDifference( px, py ) < getColorDifference( sourcePixels[py * width + px], strokeColor ) ) {
 				break;
 			}
 			
-			if ( getGradientMagnitude( current ) == 0.0f ) {
-				break;
+			float unitX, unitY;
+			if ( interpolate ) {
+				float gX = gradientField.getInterpolatedX( currentX, currentY );
+				float gY = gradientField.getInterpolatedY( currentX, currentY );
+				float magnitude = (float)Math.sqrt( gX * gX + gY * gY );
+				if ( magnitude == 0.0f ) {
+					break;
+				}
+				unitX = gX / magnitude;
+				unitY = gY / magnitude;
+			} else {
+				unitX = gradientField.getUnitX( px, py );
+				unitY = gradientField.getUnitY( px, py );
+				if ( unitX == 0.0f && unitY == 0.0f ) {
+					break;
+				}
 			}
 			
-			Point2D.Float gradient = getGradientDirection( current );
-			Point2D.Float delta = new Point2D.Float( (float)-gradient.getY(), (float)gradient.getX() );
+			// along the edge, at right angles to the gradient
+			float deltaX = -unitY, deltaY = unitX;
 			
-			if ( lastDelta.getX() * delta.getX() + lastDelta.getY() * delta.getY() < 0 ) {
-				delta.x = -delta.x;
-				delta.y = -delta.y;
+			// in double, as the dot product always has been, so paintings
+			// do not change
+			if ( (double)lastX * deltaX + (double)lastY * deltaY < 0 ) {
+				deltaX = -deltaX;
+				deltaY = -deltaY;
 			}
 			
-			float deltaMag = (float)Math.sqrt( delta.x * delta.x + delta.y * delta.y );
-			
-			delta.x = getCurvatureFilter() * delta.x + ( 1 - getCurvatureFilter() ) * lastDelta.x;
-			delta.x = delta.x / deltaMag;
+			float deltaMag = (float)Math.sqrt( deltaX * deltaX + deltaY * deltaY );
 			
-			delta.y = getCurvatureFilter() * delta.y + ( 1 - getCurvatureFilter() ) * lastDelta.y;
-			delta.y = delta.y / deltaMag;
+			deltaX = ( curvature * deltaX + ( 1 - curvature ) * lastX ) / deltaMag;
+			deltaY = ( curvature * deltaY + ( 1 - curvature ) * lastY ) / deltaMag;
 
-			current.x += brushSize * delta.x;
-			current.y += brushSize * delta.y;
+			currentX += brushSize * deltaX;
+			currentY += brushSize * deltaY;
 			
 			// brush went off canvas, so just stop it
-			if ( current.x < 0.0f || current.x >= source.getWidth() ||
-					current.y < 0.0f || current.y >= source.getHeight() ) {
+			if ( currentX < 0.0f || currentX >= source.getWidth() ||
+					currentY < 0.0f || currentY >= source.getHeight() ) {
 				break;
 			}
 			
-			lastDelta = delta;	
+			lastX = deltaX;
+			lastY = deltaY;
 
-			path.add( (Point2D.Float)current.clone() );
+			strokes.addPoint( currentX, currentY );
+			points++;
 		}
 		
-		renderStroke( target, path, strokeColor, brushSize );
-		renderStroke( writtenArea, path, Color.white, brushSize );
+		return points;
 	}
 	
-	private float getDifference( Color sC, Color tC ) {
-		int dR = ( sC.getRed() - tC.getRed() );
-		int dB = ( sC.getBlue() - tC.getBlue() );
-		int dG = ( sC.getGreen() - tC.getGreen() );
+	void paintStroke( StrokeBuffer strokes, int i ) {
+		float brushSize = strokes.getWidth( i );
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for ( int j = strokes.getFirstPoint( i ); j < strokes.getFirstPoint( i + 1 ); j++ ) {
+			minX = Math.min( minX, strokes.getX( j ) );
+			minY = Math.min( minY, strokes.getY( j ) );
+			maxX = Math.max( maxX, strokes.getX( j ) );
+			maxY = Math.max( maxY, strokes.getY( j ) );
+		}
+		// the curve stays inside its control points, and dots are drawn down
+		// and to the right of theirs
+		errorMap.markDirty( (int)Math.floor( minX - brushSize ) - 1, (int)Math.floor( minY - brushSize ) - 1,
+				(int)Math.ceil( maxX + brushSize ) + 2, (int)Math.ceil( maxY + brushSize ) + 2 );
+		
+		if ( useStrokeRasterizer ) {
+			StrokeRasterizer r = rasterizers.get();
+			r.setTarget( targetPixels, target.getWidth(), target.getHeight(), coverage );
+			rasterizeStroke( r, strokes, i );
+		} else {
+			renderStroke( target, coverage, strokes, i );
+		}
+	}
+	
+	/**
+	 * Returns the distance in RGB space between two ARGB colours.
+	 */
+	private static float getColorDifference( int sC, int tC ) {
+		int dR = ( ( sC >> 16 ) & 0xff ) - ( ( tC >> 16 ) & 0xff );
+		int dG = ( ( sC >> 8 ) & 0xff ) - ( ( tC >> 8 ) & 0xff );
+		int dB = ( sC & 0xff ) - ( tC & 0xff );
 	
 		return (float)Math.sqrt( ( double )( dR * dR + dB * dB + dG * dG ) );
 	}
 	
 	private float getDifference( int eX, int eY ) {
-		float difference;
-		
-		Color sC = new Color( source.getRGB( eX, eY ), true );
-		Color tC = new Color( target.getRGB( eX, eY ), true );
-		Color wC = new Color( writtenArea.getRGB( eX, eY ) );
-		
-		if ( wC.equals( Color.black ) ) {
-			difference = (float)Integer.MAX_VALUE;
-		} else {
-			difference = getDifference( sC, tC );
+		CoverageMask painted = snapshotCoverage != null ? snapshotCoverage : coverage;
+		if ( !painted.isSet( eX, eY ) ) {
+			return (float)Integer.MAX_VALUE;
 		}
 		
-		return difference;
+		int i = eY * source.getWidth() + eX;
+		IntBuffer painting = snapshotPixels != null ? snapshotPixels : targetPixels;
+		return getColorDifference( sourcePixels[i], painting.get( i ) );
 	}
 	
-	private SobelVector getGradientVector( Point2D.Float pos ) {
-		return sobelVector[(int)pos.y * source.getWidth() + (int)pos.x];
+	/* Properties */
+	
+	public BufferedImage getTargetImage() {
+		return target;		
 	}
 	
-	private float getGradientMagnitude( Point2D.Float pos ) {
-		SobelVector sv = getGradientVector( pos );
-		
-		return (float)Math.sqrt( sv.x * sv.x + sv.y * sv.y );
+	/**
+	 * Makes later full renders keep the strokes they paint, for
+	 * getRecordedStrokes() and saveStrokes().
+	 */
+	public void setRecordStrokes( boolean newValue ) {
+		recordStrokes = newValue;
+	}
+	public boolean getRecordStrokes() {
+		return recordStrokes;
 	}
 	
-	private Point2D.Float getGradientDirection( Point2D.Float pos ) {
-		SobelVector sv = getGradientVector( pos );
-		
-		Point2D.Float gradient = new Point2D.Float( sv.x, sv.y );
-		
-		gradient.x /= getGradientMagnitude( pos );
-		gradient.y /= getGradientMagnitude( pos );
-		
-		return gradient;
+	/**
+	 * Returns the strokes of the last full render in the order they were
+	 * painted, or null if strokes were not being recorded, the render did
+	 * not complete or a region has been repainted since.
+	 */
+	public StrokeBuffer getRecordedStrokes() {
+		return recordedStrokes;
 	}
 	
-	/* Properties */
+	/**
+	 * Writes the recorded strokes as an SVG or PDF file, chosen by the
+	 * file's extension.
+	 * 
+	 * @throws IOException if there are no recorded strokes or the file
+	 * cannot be written
+	 */
+	public void saveStrokes( String filename ) throws IOException {
+		if ( recordedStrokes == null ) {
+			throw new IOException( "No strokes have been recorded" );
+		}
+		new StrokeExporter( recordedStrokes, target.getWidth(), target.getHeight() ).write( new File( filename ) );
+	}
 	
-	public BufferedImage getTargetImage() {
-		return target;		
+	/**
+	 * Returns the statistics of the last render that ran to completion, or
+	 * null if there has been none.
+	 */
+	public RenderStats getLastRenderStats() {
+		return lastRenderStats;
+	}
+	
+	/**
+	 * Sets how many bytes of gradient fields are kept between renders. Zero, the default, turns the cache off.
+	 */
+	public void setAnalysisCacheBudget( long newValue ) {
+		analysisCache.setBudget( newValue );
+	}
+	public long getAnalysisCacheBudget() {
+		return analysisCache.getBudget();
+	}
+	
+	/**
+	 * Makes full renders look for their painting in the cache before
+	 * painting, and add it afterwards. Renders that record strokes bypass
+	 * the cache. Null, the default, turns the cache off; a cache may be
+	 * shared by many documents.
+	 */
+	public void setRenderCache( RenderCache newValue ) {
+		renderCache = newValue;
+	}
+	public RenderCache getRenderCache() {
+		return renderCache;
+	}
+	
+	/**
+	 * Sets the number of threads used to paint each layer. A value of one
+	 * paints on the calling thread.
+	 */
+	public void setParallelism( int newValue ) {
+		if ( newValue == parallelism ) {
+			return;
+		}
+		if ( pool != null ) {
+			pool.shutdown();
+			pool = null;
+		}
+		parallelism = Math.max( newValue, 1 );
+		if ( parallelism > 1 ) {
+			pool = new ForkJoinPool( parallelism );
+		}
+	}
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Makes renders with a parallelism of one paint strokes on a second
+	 * thread while the next strokes of the layer are traced. Strokes are
+	 * then traced against the canvas as it was before their layer.
+	 */
+	public void setPipelineStrokes( boolean newValue ) {
+		if ( newValue == ( painter != null ) ) {
+			return;
+		}
+		if ( painter != null ) {
+			painter.shutdown();
+			painter = null;
+		} else {
+			painter = Executors.newSingleThreadExecutor( new ThreadFactory() {
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "Painterly stroke painter" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+		}
+	}
+	public boolean getPipelineStrokes() {
+		return painter != null;
+	}
+
+	/**
+	 * Chooses between painting strokes with Java2D and with the antialiased
+	 * software StrokeRasterizer, which writes the target's pixels directly.
+	 */
+	public void setUseStrokeRasterizer( boolean newValue ) {
+		useStrokeRasterizer = newValue;
+	}
+	public boolean getUseStrokeRasterizer() {
+		return useStrokeRasterizer;
+	}
+
+	/**
+	 * Chooses where the target, coverage masks and gradient fields of later
+	 * source images are kept. Java2D paints a target that is not on the heap
+	 * through its slow generic loops, so memory mapped buffers are best
+	 * used together with the stroke rasterizer.
+	 */
+	public void setBufferAllocator( BufferAllocator newValue ) {
+		bufferAllocator = newValue;
+	}
+	public BufferAllocator getBufferAllocator() {
+		return bufferAllocator;
 	}
 
 	public void setPredefinedStyle( PainterlyStyle newStyle ) {
-		painterlyStyle = new PainterlyStyle( newStyle );
+		setStyle( newStyle );
+	}
+	
+	/**
+	 * Sets every parameter of the painting at once.
+	 */
+	public void setStyle( PainterlyStyle newValue ) {
+		painterlyStyle = newValue;
+	}
+	public PainterlyStyle getStyle() {
+		return painterlyStyle;
+	}
+	
+	public void setSeed( long newValue ) {
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setSeed( newValue ).build();
+	}
+	public long getSeed() {
+		return painterlyStyle.getSeed();
 	}
 	
 	public void setMaximumBrushSize( int newValue ) {
-		painterlyStyle.setMaximumBrushSize( newValue );		
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setMaximumBrushSize( newValue ).build();
 	}
 	public int getMaximumBrushSize() {
 		return painterlyStyle.getMaximumBrushSize();
 	}
 	
 	public void setColorOpacity( int newValue ) {
-		painterlyStyle.setColorOpacity( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setColorOpacity( newValue ).build();
 	}
 	public int getColorOpacity() {
 		return painterlyStyle.getColorOpacity();
 	}
 	
 	public void setBlurFactor( float newValue ) {	
-		painterlyStyle.setBlurFactor( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setBlurFactor( newValue ).build();
 	}
 	public float getBlurFactor() {
 		return painterlyStyle.getBlurFactor();
 	}
 	
 	public void setGridSize( float newValue ) {
-		painterlyStyle.setGridSize( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setGridSize( newValue ).build();
 	}
 	public float getGridSize() {
 		return painterlyStyle.getGridSize();
 	}
 	
 	public void setCurvatureFilter( float newValue ) {
-		painterlyStyle.setCurvatureFilter( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setCurvatureFilter( newValue ).build();
 	}
 	public float getCurvatureFilter() {
 		return painterlyStyle.getCurvatureFilter();
 	}
 	
 	public void setThreshold( float newValue ) {
-		painterlyStyle.setThreshold( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setThreshold( newValue ).build();
 	}
 	public float getThreshold() {
 		return painterlyStyle.getThreshold();
 	}
 	
 	public void setMinimumStrokeLength( int newValue ) {
-		painterlyStyle.setMinimumStrokeLength( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setMinimumStrokeLength( newValue ).build();
 	}
 	public int getMinimumStrokeLength() {
 		return painterlyStyle.getMinimumStrokeLength();
 	}
 	
 	public void setMaximumStrokeLength( int newValue ) {
-		painterlyStyle.setMaximumStrokeLength( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setMaximumStrokeLength( newValue ).build();
 	}
 	public int getMaximumStrokeLength() {
 		return painterlyStyle.getMaximumStrokeLength();
 	}
 
 	public void setHueJitter( float newValue ) {
-		painterlyStyle.setHueJitter( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setHueJitter( newValue ).build();
 	}
 	public float getHueJitter() {
 		return painterlyStyle.getHueJitter();
 	}	
 	
 	public void setSaturationJitter( float newValue ) {
-		painterlyStyle.setSaturationJitter( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setSaturationJitter( newValue ).build();
 	}
 	public float getSaturationJitter() {
 		return painterlyStyle.getSaturationJitter();
 	}
 	
 	public void setValueJitter( float newValue ) {
-		painterlyStyle.setValueJitter( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setValueJitter( newValue ).build();
 	}
 	public float getValueJitter() {
 		return painterlyStyle.getValueJitter();
 	}
 	
 	public void setRedJitter( float newValue ) {
-		painterlyStyle.setValueJitter( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setRedJitter( newValue ).build();
 	}
 	public float getRedJitter() {
 		return painterlyStyle.getRedJitter();
 	}
 	
 	public void setGreenJitter( float newValue ) {
-		painterlyStyle.setGreenJitter( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setGreenJitter( newValue ).build();
 	}
 	public float getGreenJitter() {
 		return painterlyStyle.getGreenJitter();
 	}
 	
 	public void setBlueJitter( float newValue ) {
-		painterlyStyle.setBlueJitter( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setBlueJitter( newValue ).build();
 	}
 	public float getBlueJitter() {
 		return painterlyStyle.getBlueJitter();
 	}
 	
 	public void setDrawEdges( boolean newValue ) {
-		painterlyStyle.setDrawEdges( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setDrawEdges( newValue ).build();
 	}
 	public boolean getDrawEdges() {
 		return painterlyStyle.getDrawEdges( );
 	}
 	
 	public void setEdgeThreshold( float newValue ) {
-		painterlyStyle.setEdgeThreshold( newValue );
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setEdgeThreshold( newValue ).build();
 	}
 	public float getEdgeThreshold() {
 		return painterlyStyle.getEdgeThreshold();
 	}
 	
+	public void setInterpolateGradients( boolean newValue ) {
+		painterlyStyle = new PainterlyStyle.Builder( painterlyStyle ).setInterpolateGradients( newValue ).build();
+	}
+	public boolean getInterpolateGradients() {
+		return painterlyStyle.getInterpolateGradients();
+	}
+	
 	/* Event Listeners */
 	
 	public void addStateChangeListener( StateChangeListener l ) {
@@ -563,4 +1535,16 @@ public class Document {
 			it.next().stateChanged( );
 		}
 	}
+	
+	protected void fireRenderFinishedEvent( RenderStats stats ) {
+		for ( Iterator<StateChangeListener> it = _stateChangeListeners.iterator(); it.hasNext(); ) {
+			it.next().renderFinished( stats );
+		}
+	}
+	
+	protected void fireLayerPaintedEvent( int layer, int layerCount ) {
+		for ( Iterator<StateChangeListener> it = _stateChangeListeners.iterator(); it.hasNext(); ) {
+			it.next().layerPainted( layer, layerCount, target );
+		}
+	}
 }
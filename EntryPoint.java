@@ -19,9 +19,15 @@ import javax.swing.SwingUtilities;
 public class EntryPoint {
 
 	/**
-	 * @param args
+	 * @param args with no arguments the editor is opened, otherwise the
+	 *        arguments are passed on to the headless PainterlyBatch renderer
 	 */
 	public static void main(String[] args) {
+		if ( args.length > 0 ) {
+			PainterlyBatch.main( args );
+			return;
+		}
+		
 		SwingUtilities.invokeLater( new Runnable() {
 			public void run() {
 				PainterlyFrame pf = new PainterlyFrame();
@@ -0,0 +1,187 @@
+/*
+ Copyright 2008 Sahab Yazdani
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.Rectangle;
+import java.nio.IntBuffer;
+
+/**
+ * Summed-area tables of the colour difference between the source and the
+ * painting, so the mean error of any rectangle can be read with a few
+ * lookups instead of by sampling each of its pixels.
+ *
+ * The canvas is split into square tiles, each with a table of its own, so
+ * painting a stroke only invalidates the tiles it touches. Strokes mark the
+ * area they painted with markDirty() and update() recomputes those tiles;
+ * an up to date map is only needed when a layer scans for stroke starts,
+ * after the previous layer has finished painting.
+ */
+public class ErrorMap {
+	// one word of the coverage mask per row of a tile
+	public final static int TILE_SIZE = 64;
+
+	// differences are kept in sixteenths; a tile's sum of at most 4096 pixels
+	// of at most 442 * 16 each fits in an int
+	private final static int SCALE = 16;
+
+	private final int[] sourcePixels;
+	private final IntBuffer targetPixels;
+	private final CoverageMask coverage;
+
+	private final int width, height;
+	private final int tilesX, tilesY;
+	private final IntBuffer sums;
+	private final boolean[] dirty;
+
+	/**
+	 * Creates a map of the difference between the pixels, with every tile
+	 * still to be computed.
+	 */
+	public ErrorMap( int[] sourcePixels, IntBuffer targetPixels, CoverageMask coverage, BufferAllocator allocator ) {
+		this.sourcePixels = sourcePixels;
+		this.targetPixels = targetPixels;
+		this.coverage = coverage;
+
+		width = coverage.getWidth();
+		height = coverage.getHeight();
+		tilesX = ( width + TILE_SIZE - 1 ) / TILE_SIZE;
+		tilesY = ( height + TILE_SIZE - 1 ) / TILE_SIZE;
+
+		sums = allocator.allocateInts( tilesX * tilesY * TILE_SIZE * TILE_SIZE );
+		dirty = new boolean[tilesX * tilesY];
+		markDirty( new Rectangle( 0, 0, width, height ) );
+	}
+
+	public int getTilesY() {
+		return tilesY;
+	}
+
+	/**
+	 * Marks the tiles overlapping the rectangle as out of date. Strokes
+	 * painted concurrently may mark tiles at the same time.
+	 */
+	public void markDirty( Rectangle r ) {
+		markDirty( r.x, r.y, r.x + r.width, r.y + r.height );
+	}
+
+	public void markDirty( int x0, int y0, int x1, int y1 ) {
+		int tx0 = Math.max( x0, 0 ) / TILE_SIZE, tx1 = Math.min( x1 - 1, width - 1 ) / TILE_SIZE;
+		int ty0 = Math.max( y0, 0 ) / TILE_SIZE, ty1 = Math.min( y1 - 1, height - 1 ) / TILE_SIZE;
+
+		for ( int ty = ty0; ty <= ty1; ty++ ) {
+			for ( int tx = tx0; tx <= tx1; tx++ ) {
+				dirty[ty * tilesX + tx] = true;
+			}
+		}
+	}
+
+	/**
+	 * Recomputes every out of date tile.
+	 */
+	public void update() {
+		for ( int ty = 0; ty < tilesY; ty++ ) {
+			update( ty );
+		}
+	}
+
+	/**
+	 * Recomputes the out of date tiles of one row of tiles. Different rows
+	 * can be updated concurrently.
+	 */
+	public void update( int ty ) {
+		for ( int tx = 0; tx < tilesX; tx++ ) {
+			if ( dirty[ty * tilesX + tx] ) {
+				computeTile( tx, ty );
+				dirty[ty * tilesX + tx] = false;
+			}
+		}
+	}
+
+	private void computeTile( int tx, int ty ) {
+		int base = ( ty * tilesX + tx ) * TILE_SIZE * TILE_SIZE;
+		int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+		int w = Math.min( TILE_SIZE, width - x0 ), h = Math.min( TILE_SIZE, height - y0 );
+		
+		// no query reads the sums of a tile with unpainted pixels only, which
+		// is every tile of the first layer
+		long painted = 0;
+		for ( int ly = 0; ly < h; ly++ ) {
+			painted |= coverage.getWord( x0, y0 + ly );
+		}
+		if ( painted == 0 ) {
+			return;
+		}
+		
+		// the sums of the row above, as the row is written
+		int[] above = new int[TILE_SIZE];
+
+		for ( int ly = 0; ly < h; ly++ ) {
+			int line = ( y0 + ly ) * width + x0;
+			int row = base + ly * TILE_SIZE;
+			int rowSum = 0;
+			
+			// unpainted pixels count for nothing here; getAreaError checks
+			// the coverage mask for them instead
+			long covered = coverage.getWord( x0, y0 + ly );
+
+			for ( int lx = 0; lx < w; lx++ ) {
+				if ( ( covered & ( 1L << lx ) ) != 0 ) {
+					int s = sourcePixels[line + lx], t = targetPixels.get( line + lx );
+					int dR = ( ( s >> 16 ) & 0xff ) - ( ( t >> 16 ) & 0xff );
+					int dG = ( ( s >> 8 ) & 0xff ) - ( ( t >> 8 ) & 0xff );
+					int dB = ( s & 0xff ) - ( t & 0xff );
+					
+					// Document.getColorDifference, in sixteenths
+					rowSum += (int)( (float)Math.sqrt( dR * dR + dG * dG + dB * dB ) * SCALE + 0.5f );
+				}
+				above[lx] += rowSum;
+				sums.put( row + lx, above[lx] );
+			}
+		}
+	}
+
+	/**
+	 * Returns the mean difference of the pixels from (x0, y0) up to but not
+	 * including (x1, y1), which must be inside the canvas, or
+	 * Integer.MAX_VALUE if any of them is unpainted.
+	 */
+	public float getAreaError( int x0, int y0, int x1, int y1 ) {
+		if ( !coverage.isFilled( x0, y0, x1, y1 ) ) {
+			return (float)Integer.MAX_VALUE;
+		}
+
+		long sum = 0;
+		for ( int ty = y0 / TILE_SIZE; ty <= ( y1 - 1 ) / TILE_SIZE; ty++ ) {
+			for ( int tx = x0 / TILE_SIZE; tx <= ( x1 - 1 ) / TILE_SIZE; tx++ ) {
+				int base = ( ty * tilesX + tx ) * TILE_SIZE * TILE_SIZE;
+				int lx0 = Math.max( x0 - tx * TILE_SIZE, 0 ), lx1 = Math.min( x1 - tx * TILE_SIZE, TILE_SIZE ) - 1;
+				int ly0 = Math.max( y0 - ty * TILE_SIZE, 0 ), ly1 = Math.min( y1 - ty * TILE_SIZE, TILE_SIZE ) - 1;
+
+				sum += sums.get( base + ly1 * TILE_SIZE + lx1 );
+				if ( lx0 > 0 ) {
+					sum -= sums.get( base + ly1 * TILE_SIZE + lx0 - 1 );
+				}
+				if ( ly0 > 0 ) {
+					sum -= sums.get( base + ( ly0 - 1 ) * TILE_SIZE + lx1 );
+				}
+				if ( lx0 > 0 && ly0 > 0 ) {
+					sum += sums.get( base + ( ly0 - 1 ) * TILE_SIZE + lx0 - 1 );
+				}
+			}
+		}
+
+		return sum / (float)( SCALE * (long)( x1 - x0 ) * ( y1 - y0 ) );
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Per-pixel image gradient stored as parallel primitive buffers, indexed
+ * by <code>y * width + x</code>. Beside each vector the field keeps its
+ * magnitude and the vector scaled to unit length, so tracing a stroke
+ * needs no division or square root per step.
+ */
+public class GradientField {
+	private final int width;
+	private final int height;
+
+	private final BufferAllocator allocator;
+	private final ShortBuffer gx;
+	private final ShortBuffer gy;
+	private final FloatBuffer magnitude;
+	private final FloatBuffer unitX;
+	private final FloatBuffer unitY;
+	private float maxMagnitude = 0.0f;
+	
+	// the sRGB value getRGB() gives for each linear gray byte, which is what
+	// the operator has always been run over
+	private final static int[] GRAY_TO_SRGB = new int[256];
+	static {
+		BufferedImage ramp = new BufferedImage( 256, 1, BufferedImage.TYPE_BYTE_GRAY );
+		byte[] data = ((DataBufferByte)ramp.getRaster().getDataBuffer()).getData();
+		for ( int i = 0; i < 256; i++ ) {
+			data[i] = (byte)i;
+		}
+		for ( int i = 0; i < 256; i++ ) {
+			GRAY_TO_SRGB[i] = ramp.getRGB( i, 0 ) & 0xff;
+		}
+	}
+
+	public GradientField( int width, int height ) {
+		this( width, height, BufferAllocator.HEAP );
+	}
+	
+	public GradientField( int width, int height, BufferAllocator allocator ) {
+		this.width = width;
+		this.height = height;
+		this.allocator = allocator;
+
+		gx = allocator.allocateShorts( width * height );
+		gy = allocator.allocateShorts( width * height );
+		magnitude = allocator.allocateFloats( width * height );
+		unitX = allocator.allocateFloats( width * height );
+		unitY = allocator.allocateFloats( width * height );
+	}
+
+	/**
+	 * Creates a copy of another gradient field, kept where the other one is.
+	 */
+	public GradientField( GradientField source ) {
+		this( source.width, source.height, source.allocator );
+		
+		gx.put( source.gx.duplicate() );
+		gy.put( source.gy.duplicate() );
+		magnitude.put( source.magnitude.duplicate() );
+		unitX.put( source.unitX.duplicate() );
+		unitY.put( source.unitY.duplicate() );
+		gx.clear();
+		gy.clear();
+		magnitude.clear();
+		unitX.clear();
+		unitY.clear();
+		maxMagnitude = source.maxMagnitude;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Runs the 3x3 Sobel operator over a <code>TYPE_BYTE_GRAY</code> image,
+	 * reading the luma bytes straight out of its raster and mapping them to
+	 * sRGB as getRGB() would. Pixels beyond the border count as 0. The
+	 * largest magnitude is found along the way.
+	 */
+	public void computeSobel( BufferedImage luma ) {
+		if ( luma.getType() != BufferedImage.TYPE_BYTE_GRAY ) {
+			throw new IllegalArgumentException( "luma image must be TYPE_BYTE_GRAY" );
+		}
+		if ( luma.getWidth() != width || luma.getHeight() != height ) {
+			throw new IllegalArgumentException( "luma image does not match the gradient field size" );
+		}
+		
+		Raster raster = luma.getRaster();
+		byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+		int stride = ((ComponentSampleModel)raster.getSampleModel()).getScanlineStride();
+		float max = 0.0f;
+		
+		for ( int y = 0; y < height; y++ ) {
+			int above = y > 0 ? ( y - 1 ) * stride : -1;
+			int row = y * stride;
+			int below = y < height - 1 ? ( y + 1 ) * stride : -1;
+			
+			boolean inner = above >= 0 && below >= 0;
+			
+			for ( int x = 0; x < width; x++ ) {
+				int tl, tm, tr, ml, mr, bl, bm, br;
+				if ( inner && x > 0 && x < width - 1 ) {
+					tl = GRAY_TO_SRGB[data[above + x - 1] & 0xff];
+					tm = GRAY_TO_SRGB[data[above + x] & 0xff];
+					tr = GRAY_TO_SRGB[data[above + x + 1] & 0xff];
+					ml = GRAY_TO_SRGB[data[row + x - 1] & 0xff];
+					mr = GRAY_TO_SRGB[data[row + x + 1] & 0xff];
+					bl = GRAY_TO_SRGB[data[below + x - 1] & 0xff];
+					bm = GRAY_TO_SRGB[data[below + x] & 0xff];
+					br = GRAY_TO_SRGB[data[below + x + 1] & 0xff];
+				} else {
+					tl = sample( data, above, x - 1 );
+					tm = sample( data, above, x );
+					tr = sample( data, above, x + 1 );
+					ml = sample( data, row, x - 1 );
+					mr = sample( data, row, x + 1 );
+					bl = sample( data, below, x - 1 );
+					bm = sample( data, below, x );
+					br = sample( data, below, x + 1 );
+				}
+				
+				int vx = ( tr + 2 * mr + br ) - ( tl + 2 * ml + bl );
+				int vy = ( bl + 2 * bm + br ) - ( tl + 2 * tm + tr );
+				
+				float m = put( y * width + x, (short)vx, (short)vy );
+				if ( m > max ) {
+					max = m;
+				}
+			}
+		}
+		maxMagnitude = max;
+	}
+	
+	/**
+	 * Returns the sRGB value of a luma byte, or 0 if the row, given by its
+	 * offset, or the column is outside the image.
+	 */
+	private int sample( byte[] data, int row, int x ) {
+		if ( row < 0 || x < 0 || x >= width ) {
+			return 0;
+		}
+		return GRAY_TO_SRGB[data[row + x] & 0xff];
+	}
+	
+	public void set( int x, int y, short vx, short vy ) {
+		maxMagnitude = Math.max( maxMagnitude, put( y * width + x, vx, vy ) );
+	}
+	
+	/**
+	 * Stores the vector with its magnitude and direction, and returns the
+	 * magnitude.
+	 */
+	private float put( int i, short vx, short vy ) {
+		float m = (float)Math.sqrt( vx * vx + vy * vy );
+		
+		gx.put( i, vx );
+		gy.put( i, vy );
+		magnitude.put( i, m );
+		unitX.put( i, m == 0.0f ? 0.0f : vx / m );
+		unitY.put( i, m == 0.0f ? 0.0f : vy / m );
+		
+		return m;
+	}
+
+	public void clear( int x, int y ) {
+		set( x, y, (short)0, (short)0 );
+	}
+
+	public short getX( int x, int y ) {
+		return gx.get( y * width + x );
+	}
+	public short getY( int x, int y ) {
+		return gy.get( y * width + x );
+	}
+	public float getMagnitude( int x, int y ) {
+		return magnitude.get( y * width + x );
+	}
+	
+	/**
+	 * Returns the direction of the gradient as a unit vector, or zero where
+	 * there is no gradient.
+	 */
+	public float getUnitX( int x, int y ) {
+		return unitX.get( y * width + x );
+	}
+	public float getUnitY( int x, int y ) {
+		return unitY.get( y * width + x );
+	}
+	
+	/**
+	 * Returns the gradient at a point between pixels, interpolated
+	 * bilinearly from the four pixels whose centres surround it. Pixel
+	 * (x, y) covers the square from (x, y) to (x + 1, y + 1); beyond the
+	 * border the nearest pixels are used.
+	 */
+	public float getInterpolatedX( float x, float y ) {
+		return interpolate( gx, x, y );
+	}
+	public float getInterpolatedY( float x, float y ) {
+		return interpolate( gy, x, y );
+	}
+	
+	private float interpolate( ShortBuffer values, float x, float y ) {
+		float fx = x - 0.5f, fy = y - 0.5f;
+		int x0 = (int)Math.floor( fx ), y0 = (int)Math.floor( fy );
+		float tx = fx - x0, ty = fy - y0;
+		
+		int left = Math.max( x0, 0 ), right = Math.min( x0 + 1, width - 1 );
+		int above = Math.max( y0, 0 ) * width, below = Math.min( y0 + 1, height - 1 ) * width;
+		
+		float top = values.get( above + left ) + ( values.get( above + right ) - values.get( above + left ) ) * tx;
+		float bottom = values.get( below + left ) + ( values.get( below + right ) - values.get( below + left ) ) * tx;
+		return top + ( bottom - top ) * ty;
+	}
+	
+	/**
+	 * Returns the largest magnitude in the field. Clearing or lowering
+	 * vectors with set() does not lower it.
+	 */
+	public float getMaxMagnitude() {
+		return maxMagnitude;
+	}
+	
+	public long getSizeInBytes() {
+		return (long)width * height * ( 2 + 2 + 4 + 4 + 4 );
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ Copyright 2008 Sahab Yazdani
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads source images into TYPE_INT_ARGB, the one layout the rest of the
+ * program reads pixels from, and records how long decoding and converting
+ * took. Readers return whatever type suits the file, often TYPE_3BYTE_BGR
+ * or a custom type, and reading those through getRGB() converts every pixel
+ * through the colour model on every pass; converting once on load avoids
+ * that.
+ *
+ * Images are decoded in the reader's own layout: asking the PNG reader for
+ * packed ints instead makes it convert row by row, which is slower than
+ * decoding and converting the whole image afterwards.
+ */
+public class ImageInput {
+	private String format = null;
+	private String sourceType = null;
+	private long decodeNanos = 0;
+	private long convertNanos = 0;
+
+	/**
+	 * Reads the first image of the file as TYPE_INT_ARGB.
+	 *
+	 * @throws IOException if the file cannot be read or no reader knows its
+	 * format
+	 */
+	public BufferedImage read( File file ) throws IOException {
+		return read( file, file.toString() );
+	}
+
+	/**
+	 * Reads the first image in the stream as TYPE_INT_ARGB, leaving the
+	 * stream open.
+	 */
+	public BufferedImage read( InputStream stream ) throws IOException {
+		return read( stream, "the input stream" );
+	}
+
+	private BufferedImage read( Object input, String name ) throws IOException {
+		long start = System.nanoTime();
+
+		ImageInputStream in = ImageIO.createImageInputStream( input );
+		if ( in == null ) {
+			throw new IOException( "Could not open " + name );
+		}
+		BufferedImage image;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders( in );
+			if ( !readers.hasNext() ) {
+				throw new IOException( "No reader for " + name );
+			}
+			ImageReader reader = readers.next();
+			reader.setInput( in, true, true );
+
+			try {
+				format = reader.getFormatName().toLowerCase();
+
+				image = reader.read( 0 );
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+		long decoded = System.nanoTime();
+
+		sourceType = describeType( image );
+		image = toIntArgb( image );
+		convertNanos = System.nanoTime() - decoded;
+		decodeNanos = decoded - start;
+
+		return image;
+	}
+
+	/**
+	 * Returns the image itself if it is already TYPE_INT_ARGB, otherwise a
+	 * TYPE_INT_ARGB copy.
+	 */
+	public static BufferedImage toIntArgb( BufferedImage image ) {
+		if ( image.getType() == BufferedImage.TYPE_INT_ARGB ) {
+			return image;
+		}
+
+		// a plain copy rather than compositing over the empty image, which
+		// Java2D does with a native loop for each pair of common types;
+		// blending images with alpha costs several times as much
+		BufferedImage converted = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB );
+		Graphics2D g = converted.createGraphics();
+		g.setComposite( AlphaComposite.Src );
+		g.drawImage( image, 0, 0, null );
+		g.dispose();
+
+		return converted;
+	}
+
+	private static String describeType( BufferedImage image ) {
+		switch ( image.getType() ) {
+			case BufferedImage.TYPE_INT_ARGB: return "int ARGB";
+			case BufferedImage.TYPE_INT_RGB: return "int RGB";
+			case BufferedImage.TYPE_3BYTE_BGR: return "3 byte BGR";
+			case BufferedImage.TYPE_4BYTE_ABGR: return "4 byte ABGR";
+			case BufferedImage.TYPE_BYTE_GRAY: return "byte gray";
+			case BufferedImage.TYPE_USHORT_GRAY: return "ushort gray";
+			case BufferedImage.TYPE_BYTE_INDEXED: return "indexed";
+			default: return "custom";
+		}
+	}
+
+	/**
+	 * Returns the name of the format of the last image read.
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * Returns the layout the reader decoded the last image into.
+	 */
+	public String getSourceType() {
+		return sourceType;
+	}
+
+	public long getDecodeNanos() {
+		return decodeNanos;
+	}
+
+	/**
+	 * Returns the time spent turning the decoded image into TYPE_INT_ARGB.
+	 */
+	public long getConvertNanos() {
+		return convertNanos;
+	}
+
+	public String toString() {
+		return String.format( "%s decoded as %s in %d ms, converted in %d ms",
+				format, sourceType, decodeNanos / 1000000, convertNanos / 1000000 );
+	}
+}
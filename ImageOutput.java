@@ -0,0 +1,264 @@
+/*
+ Copyright 2008 Sahab Yazdani
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * The format a painting is written in and its compression settings: PNG
+ * and TIFF with a deflate level, JPEG with a quality, and lossless WebP
+ * when a WebP plugin for ImageIO is on the class path.
+ *
+ * Images are handed to the ImageIO writer as they are. Writers pull pixels
+ * through RenderedImage.getData() a row or a tile at a time, so an image
+ * whose tiles are painted on demand, like TiledRenderer's, is painted and
+ * encoded piece by piece rather than held in memory whole.
+ */
+public class ImageOutput {
+	public final static String PNG = "png";
+	public final static String TIFF = "tiff";
+	public final static String JPEG = "jpeg";
+	public final static String WEBP = "webp";
+
+	// the writer's own deflate level
+	public final static int DEFAULT_LEVEL = -1;
+	public final static int FASTEST_LEVEL = 1;
+	public final static int BEST_LEVEL = 9;
+
+	private final String format;
+	private int compressionLevel = DEFAULT_LEVEL;
+	private float quality = 0.9f;
+	private int tileSize = 0;
+
+	/**
+	 * @param format PNG, TIFF, JPEG or WEBP
+	 */
+	public ImageOutput( String format ) {
+		if ( !Arrays.asList( PNG, TIFF, JPEG, WEBP ).contains( format ) ) {
+			throw new IllegalArgumentException( "Unknown image format " + format );
+		}
+		this.format = format;
+	}
+
+	/**
+	 * Returns the output for the format the file's extension names, with
+	 * default settings. Files with any other extension are written as PNG.
+	 */
+	public static ImageOutput forFile( File file ) {
+		String name = file.getName().toLowerCase();
+		String suffix = name.substring( name.lastIndexOf( '.' ) + 1 );
+
+		if ( suffix.equals( "tif" ) || suffix.equals( "tiff" ) ) {
+			return new ImageOutput( TIFF );
+		} else if ( suffix.equals( "jpg" ) || suffix.equals( "jpeg" ) ) {
+			return new ImageOutput( JPEG );
+		} else if ( suffix.equals( "webp" ) ) {
+			return new ImageOutput( WEBP );
+		}
+		return new ImageOutput( PNG );
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public String getExtension() {
+		return format.equals( TIFF ) ? "tif" : format.equals( JPEG ) ? "jpg" : format;
+	}
+
+	/**
+	 * Sets the deflate level of PNG and TIFF files, from 0 for none through
+	 * FASTEST_LEVEL to BEST_LEVEL, or DEFAULT_LEVEL.
+	 */
+	public void setCompressionLevel( int newValue ) {
+		if ( newValue != DEFAULT_LEVEL && ( newValue < 0 || newValue > BEST_LEVEL ) ) {
+			throw new IllegalArgumentException( "Compression level " + newValue + " is not between 0 and 9" );
+		}
+		compressionLevel = newValue;
+	}
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets the quality of JPEG files, between 0 and 1.
+	 */
+	public void setQuality( float newValue ) {
+		if ( newValue < 0 || newValue > 1 ) {
+			throw new IllegalArgumentException( "Quality " + newValue + " is not between 0 and 1" );
+		}
+		quality = newValue;
+	}
+	public float getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Sets the size of the tiles of TIFF files. Zero follows the tiling of
+	 * the image written, writing strips when it is a single tile.
+	 */
+	public void setTileSize( int newValue ) {
+		tileSize = newValue;
+	}
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Writes the image to the file, replacing it. The image is written under
+	 * another name and moved into place, so a write that fails leaves the
+	 * old file as it was.
+	 *
+	 * @throws IOException if no writer is available for the format or the
+	 * file cannot be written
+	 */
+	public void write( RenderedImage image, File file ) throws IOException {
+		File temporary = File.createTempFile( "." + file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile() );
+		try {
+			write( image, temporary, file.toString() );
+			Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	/**
+	 * Writes the image to the stream, leaving it open.
+	 */
+	public void write( RenderedImage image, OutputStream stream ) throws IOException {
+		write( image, stream, "the output stream" );
+		stream.flush();
+	}
+
+	private void write( RenderedImage image, Object output, String name ) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName( format );
+		if ( !writers.hasNext() ) {
+			throw new IOException( "No " + format.toUpperCase() + " writer available" );
+		}
+		ImageWriter writer = writers.next();
+
+		ImageOutputStream out = ImageIO.createImageOutputStream( output );
+		if ( out == null ) {
+			throw new IOException( "Could not write to " + name );
+		}
+		try {
+			writer.setOutput( out );
+			writer.write( null, new IIOImage( image, null, null ), createParam( writer, image ) );
+		} finally {
+			writer.dispose();
+			out.close();
+		}
+	}
+
+	private ImageWriteParam createParam( ImageWriter writer, RenderedImage image ) {
+		ImageWriteParam param = writer.getDefaultWriteParam();
+
+		if ( format.equals( PNG ) ) {
+			// the PNG writer's deflate level is 9 - round( 9 * quality )
+			if ( compressionLevel != DEFAULT_LEVEL ) {
+				param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+				param.setCompressionQuality( ( BEST_LEVEL - compressionLevel ) / 9.0f );
+			}
+		} else if ( format.equals( TIFF ) ) {
+			int tileWidth = tileSize > 0 ? tileSize : image.getTileWidth();
+			int tileHeight = tileSize > 0 ? tileSize : image.getTileHeight();
+			if ( tileWidth < image.getWidth() || tileHeight < image.getHeight() ) {
+				param.setTilingMode( ImageWriteParam.MODE_EXPLICIT );
+				param.setTiling( tileWidth, tileHeight, 0, 0 );
+			}
+
+			param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+			if ( compressionLevel == 0 ) {
+				param.setCompressionType( "Uncompressed" );
+			} else {
+				// the TIFF writer's deflate level is 1 + 8 * quality, which is
+				// 9 unless a quality is set
+				param.setCompressionType( "Deflate" );
+				if ( compressionLevel != DEFAULT_LEVEL ) {
+					param.setCompressionQuality( ( compressionLevel - 1 ) / 8.0f );
+				}
+			}
+		} else if ( format.equals( JPEG ) ) {
+			param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+			param.setCompressionQuality( quality );
+		} else if ( param.canWriteCompressed() ) {
+			param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+			for ( String type : param.getCompressionTypes() ) {
+				if ( type.toLowerCase().contains( "lossless" ) ) {
+					param.setCompressionType( type );
+				}
+			}
+		}
+
+		return param;
+	}
+
+	/**
+	 * Returns an RGB image sharing the pixels of an ARGB image whose alpha is
+	 * 255 everywhere, as a painting's is, so files are not given a useless
+	 * alpha channel and JPEG, which cannot hold alpha, can be written at
+	 * all. Images that are not packed ARGB ints are returned unchanged.
+	 */
+	public static BufferedImage opaque( BufferedImage image ) {
+		ColorModel cm = image.getColorModel();
+		if ( !( cm instanceof DirectColorModel ) || !cm.hasAlpha() || cm.isAlphaPremultiplied()
+				|| image.getRaster().getDataBuffer().getDataType() != DataBuffer.TYPE_INT
+				|| !( image.getSampleModel() instanceof SinglePixelPackedSampleModel ) ) {
+			return image;
+		}
+
+		int[] masks = { 0xff0000, 0xff00, 0xff };
+		DirectColorModel rgb = (DirectColorModel)cm;
+		if ( rgb.getRedMask() != masks[0] || rgb.getGreenMask() != masks[1] || rgb.getBlueMask() != masks[2] ) {
+			return image;
+		}
+
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)image.getSampleModel();
+		WritableRaster raster = Raster.createWritableRaster(
+				new SinglePixelPackedSampleModel( DataBuffer.TYPE_INT, image.getWidth(), image.getHeight(), sm.getScanlineStride(), masks ),
+				image.getRaster().getDataBuffer(), null );
+
+		return new BufferedImage( new DirectColorModel( 24, masks[0], masks[1], masks[2] ), raster, false, null );
+	}
+
+	public String toString() {
+		if ( format.equals( JPEG ) ) {
+			return format + " quality " + quality;
+		} else if ( format.equals( WEBP ) ) {
+			return format;
+		}
+		return format + ( compressionLevel == DEFAULT_LEVEL ? "" : " level " + compressionLevel );
+	}
+}
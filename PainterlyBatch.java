@@ -0,0 +1,425 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Headless command line front end that paints a batch of images with one
+ * style.
+ */
+public class PainterlyBatch {
+	private final static String USAGE =
+		"Usage: PainterlyBatch [-threads n] [-parallelism n] [-seed n] [-rasterizer] [-pipeline] [-stats] [-tile n] [-mapped dir] [-vector svg|pdf]\n" +
+		"                      [-format png|tiff|jpeg|webp] [-compression fast|max|0-9] [-quality q] <input> <style> <output directory>\n" +
+		"  <input>      an image, a directory of images or a glob such as photos/*.jpg\n" +
+		"  <style>      impressionist, expressionist, colorist-wash, pointillist or a style file\n" +
+		"  -threads     number of images painted at once (default: number of processors)\n" +
+		"  -parallelism threads used to paint each image (default: 1)\n" +
+		"  -seed        overrides the style's random seed\n" +
+		"  -rasterizer  paints strokes with the software rasterizer instead of Java2D\n" +
+		"  -pipeline    paints strokes on a second thread while the next ones are traced\n" +
+		"  -stats       prints the time spent in each layer and stage of every image\n" +
+		"  -tile        paints images in tiles of n pixels, for sources too big for memory\n" +
+		"  -mapped      keeps each image's canvas in memory mapped files in dir instead of on the heap\n" +
+		"  -vector      also writes the strokes of each image as an SVG or PDF file; not with -tile\n" +
+		"  -format      format of the images written (default: png, or tiled tiff with -tile)\n" +
+		"  -compression deflate level of png and tiff images, fast being 1 and max 9\n" +
+		"  -quality     quality of jpeg images between 0 and 1 (default: 0.9)";
+
+	private final PainterlyStyle style;
+	private final File outputDirectory;
+	private final int parallelism;
+	private final Long seed;
+	private boolean useStrokeRasterizer = false;
+	private boolean pipelineStrokes = false;
+	private boolean printStats = false;
+	private int tileSize = 0;
+	private BufferAllocator bufferAllocator = BufferAllocator.HEAP;
+	private String vectorFormat = null;
+	private ImageOutput output = null;
+
+	/**
+	 * @param seed overrides the style's seed when not null
+	 */
+	public PainterlyBatch( PainterlyStyle style, File outputDirectory, int parallelism, Long seed ) {
+		this.style = style;
+		this.outputDirectory = outputDirectory;
+		this.parallelism = parallelism;
+		this.seed = seed;
+	}
+
+	public void setUseStrokeRasterizer( boolean newValue ) {
+		useStrokeRasterizer = newValue;
+	}
+	
+	public void setPipelineStrokes( boolean newValue ) {
+		pipelineStrokes = newValue;
+	}
+	
+	/**
+	 * Makes render() add the RenderStats of each image to its report.
+	 */
+	public void setPrintStats( boolean newValue ) {
+		printStats = newValue;
+	}
+	
+	/**
+	 * Makes render() paint images tile by tile with a TiledRenderer, written
+	 * as they are painted. Zero paints each image in one piece.
+	 */
+	public void setTileSize( int newValue ) {
+		tileSize = newValue;
+	}
+	
+	/**
+	 * Chooses where the canvas of each image painted in one piece is kept.
+	 */
+	public void setBufferAllocator( BufferAllocator newValue ) {
+		bufferAllocator = newValue;
+	}
+	
+	/**
+	 * Sets the format images are written in. Null writes PNGs, or tiled
+	 * TIFFs when painting in tiles.
+	 */
+	public void setOutput( ImageOutput newValue ) {
+		output = newValue;
+	}
+	
+	/**
+	 * Makes render() also write the strokes of each image painted in one
+	 * piece next to its PNG, as "svg" or "pdf". Null writes no strokes.
+	 */
+	public void setVectorFormat( String newValue ) {
+		vectorFormat = newValue;
+	}
+	
+	/**
+	 * Paints a single image and writes it to the output directory as a PNG
+	 * with the same base name. Returns a line describing where the time went.
+	 * 
+	 * @throws IOException if the image cannot be read or written, or could
+	 *         not be painted
+	 */
+	public String render( File input ) throws IOException {
+		if ( tileSize > 0 ) {
+			return renderTiled( input );
+		}
+		
+		long start = System.nanoTime();
+
+		Document document = new Document();
+		document.setStyle( style );
+		if ( seed != null ) {
+			document.setSeed( seed.longValue() );
+		}
+		document.setUseStrokeRasterizer( useStrokeRasterizer );
+		document.setBufferAllocator( bufferAllocator );
+		document.setRecordStrokes( vectorFormat != null );
+
+		ImageOutput imageOutput = output != null ? output : new ImageOutput( ImageOutput.PNG );
+		long loaded, painted, saved;
+		RenderStats stats;
+		// the threads are stopped whether or not the image gets painted, so
+		// failed images do not leave them behind
+		try {
+			document.setParallelism( parallelism );
+			document.setPipelineStrokes( pipelineStrokes );
+
+			document.loadSourceFile( input );
+			loaded = System.nanoTime();
+
+			stats = document.doPainterly();
+			painted = System.nanoTime();
+			if ( stats == null ) {
+				// a blank canvas is not a painting; report it rather than save it
+				throw new IOException( "painting failed" );
+			}
+
+			document.saveDocument( new File( outputDirectory, baseName( input ) + "." + imageOutput.getExtension() ), imageOutput );
+			if ( vectorFormat != null ) {
+				document.saveStrokes( new File( outputDirectory, baseName( input ) + "." + vectorFormat ).getPath() );
+			}
+			saved = System.nanoTime();
+		} finally {
+			document.setParallelism( 1 );
+			document.setPipelineStrokes( false );
+		}
+
+		String report = String.format( "%s: load %d ms (%s), paint %d ms, save %d ms (%s), total %d ms",
+				input.getName(),
+				( loaded - start ) / 1000000, document.getSourceInput(), ( painted - loaded ) / 1000000,
+				( saved - painted ) / 1000000, imageOutput, ( saved - start ) / 1000000 );
+		if ( printStats ) {
+			report += String.format( "%n" ) + stats.toString().trim();
+		}
+		
+		return report;
+	}
+
+	private String renderTiled( File input ) throws IOException {
+		long start = System.nanoTime();
+		
+		PainterlyStyle tiledStyle = style;
+		if ( seed != null ) {
+			tiledStyle = new PainterlyStyle.Builder( style ).setSeed( seed.longValue() ).build();
+		}
+		
+		TiledRenderer renderer = new TiledRenderer( tiledStyle, tileSize );
+		renderer.setParallelism( parallelism );
+		renderer.setUseStrokeRasterizer( useStrokeRasterizer );
+		ImageOutput imageOutput = output != null ? output : new ImageOutput( ImageOutput.TIFF );
+		renderer.setOutput( imageOutput );
+		renderer.render( input, new File( outputDirectory, baseName( input ) + "." + imageOutput.getExtension() ) );
+		
+		return String.format( "%s: painted in %d pixel tiles, written as %s, total %d ms",
+				input.getName(), tileSize, imageOutput, ( System.nanoTime() - start ) / 1000000 );
+	}
+	
+	private static String baseName( File file ) {
+		String name = file.getName();
+		int dot = name.lastIndexOf( '.' );
+
+		return dot > 0 ? name.substring( 0, dot ) : name;
+	}
+
+	/**
+	 * Expands an input argument into the image files it names.
+	 */
+	static List<File> listInputs( String input ) {
+		List<File> files = new ArrayList<File>();
+		File file = new File( input );
+
+		if ( file.isFile() ) {
+			files.add( file );
+		} else if ( file.isDirectory() ) {
+			List<String> suffixes = Arrays.asList( ImageIO.getReaderFileSuffixes() );
+			for ( File f : listFiles( file ) ) {
+				String name = f.getName();
+				String suffix = name.substring( name.lastIndexOf( '.' ) + 1 ).toLowerCase();
+				if ( f.isFile() && suffixes.contains( suffix ) ) {
+					files.add( f );
+				}
+			}
+		} else {
+			// treat the last path component as a glob
+			File directory = file.getParentFile() == null ? new File( "." ) : file.getParentFile();
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher( "glob:" + file.getName() );
+			for ( File f : listFiles( directory ) ) {
+				if ( f.isFile() && matcher.matches( Paths.get( f.getName() ) ) ) {
+					files.add( f );
+				}
+			}
+		}
+
+		return files;
+	}
+
+	/**
+	 * Describes each pair of inputs that would be written to the same
+	 * output files, because their names differ only in the extension or in
+	 * case, which some file systems ignore.
+	 */
+	static List<String> findNameClashes( List<File> inputs ) {
+		List<String> clashes = new ArrayList<String>();
+		Map<String, File> byName = new HashMap<String, File>();
+
+		for ( File input : inputs ) {
+			File other = byName.put( baseName( input ).toLowerCase(), input );
+			if ( other != null ) {
+				clashes.add( other + " and " + input + " would both be painted as " + baseName( input ) + "; rename one of them" );
+			}
+		}
+
+		return clashes;
+	}
+
+	private static List<File> listFiles( File directory ) {
+		File[] files = directory.listFiles();
+		if ( files == null ) {
+			return new ArrayList<File>();
+		}
+		Arrays.sort( files );
+		return Arrays.asList( files );
+	}
+
+	public static void main( String[] args ) {
+		System.setProperty( "java.awt.headless", "true" );
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		int parallelism = 1;
+		Long seed = null;
+		boolean useStrokeRasterizer = false;
+		boolean pipelineStrokes = false;
+		boolean printStats = false;
+		int tileSize = 0;
+		File mappedDirectory = null;
+		String vectorFormat = null;
+		String format = null;
+		int compressionLevel = ImageOutput.DEFAULT_LEVEL;
+		Float quality = null;
+		List<String> positional = new ArrayList<String>();
+
+		try {
+			for ( int i = 0; i < args.length; i++ ) {
+				if ( args[i].equals( "-threads" ) ) {
+					threads = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-parallelism" ) ) {
+					parallelism = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-seed" ) ) {
+					seed = Long.valueOf( args[++i] );
+				} else if ( args[i].equals( "-rasterizer" ) ) {
+					useStrokeRasterizer = true;
+				} else if ( args[i].equals( "-pipeline" ) ) {
+					pipelineStrokes = true;
+				} else if ( args[i].equals( "-stats" ) ) {
+					printStats = true;
+				} else if ( args[i].equals( "-tile" ) ) {
+					tileSize = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-mapped" ) ) {
+					mappedDirectory = new File( args[++i] );
+				} else if ( args[i].equals( "-vector" ) ) {
+					vectorFormat = args[++i].toLowerCase();
+				} else if ( args[i].equals( "-format" ) ) {
+					format = args[++i].toLowerCase();
+					if ( format.equals( "tif" ) ) {
+						format = ImageOutput.TIFF;
+					} else if ( format.equals( "jpg" ) ) {
+						format = ImageOutput.JPEG;
+					}
+				} else if ( args[i].equals( "-compression" ) ) {
+					String level = args[++i];
+					compressionLevel = level.equals( "fast" ) ? ImageOutput.FASTEST_LEVEL
+							: level.equals( "max" ) ? ImageOutput.BEST_LEVEL : Integer.parseInt( level );
+				} else if ( args[i].equals( "-quality" ) ) {
+					quality = Float.valueOf( args[++i] );
+				} else {
+					positional.add( args[i] );
+				}
+			}
+		} catch ( RuntimeException e ) {
+			positional.clear();
+		}
+		if ( positional.size() != 3 || threads < 1 || tileSize < 0
+				|| ( vectorFormat != null && !vectorFormat.equals( "svg" ) && !vectorFormat.equals( "pdf" ) ) ) {
+			System.err.println( USAGE );
+			System.exit( 2 );
+		}
+		if ( vectorFormat != null && tileSize > 0 ) {
+			System.err.println( "-vector cannot be used with -tile, since tiled images do not record their strokes" );
+			System.exit( 2 );
+		}
+
+		PainterlyStyle style = PainterlyStyle.forName( positional.get( 1 ) );
+		if ( style == null ) {
+			try {
+				style = PainterlyStyle.load( new File( positional.get( 1 ) ) );
+			} catch ( IOException e ) {
+				System.err.println( "Could not load style " + positional.get( 1 ) + ": " + e.getMessage() );
+				System.exit( 2 );
+			}
+		}
+		File outputDirectory = new File( positional.get( 2 ) );
+		if ( !outputDirectory.isDirectory() && !outputDirectory.mkdirs() ) {
+			System.err.println( "Could not create output directory " + outputDirectory );
+			System.exit( 2 );
+		}
+
+		List<File> inputs = listInputs( positional.get( 0 ) );
+		if ( inputs.isEmpty() ) {
+			System.err.println( "No images found for " + positional.get( 0 ) );
+			System.exit( 1 );
+		}
+		List<String> clashes = findNameClashes( inputs );
+		if ( !clashes.isEmpty() ) {
+			for ( String clash : clashes ) {
+				System.err.println( clash );
+			}
+			System.exit( 2 );
+		}
+
+		final PainterlyBatch batch = new PainterlyBatch( style, outputDirectory, parallelism, seed );
+		batch.setUseStrokeRasterizer( useStrokeRasterizer );
+		batch.setPipelineStrokes( pipelineStrokes );
+		batch.setPrintStats( printStats );
+		batch.setTileSize( tileSize );
+		batch.setVectorFormat( vectorFormat );
+		if ( format != null || compressionLevel != ImageOutput.DEFAULT_LEVEL || quality != null ) {
+			ImageOutput output = null;
+			try {
+				output = new ImageOutput( format != null ? format : tileSize > 0 ? ImageOutput.TIFF : ImageOutput.PNG );
+				output.setCompressionLevel( compressionLevel );
+				if ( quality != null ) {
+					output.setQuality( quality.floatValue() );
+				}
+			} catch ( IllegalArgumentException e ) {
+				System.err.println( e.getMessage() );
+				System.exit( 2 );
+			}
+			batch.setOutput( output );
+		}
+		if ( mappedDirectory != null ) {
+			if ( !mappedDirectory.isDirectory() ) {
+				System.err.println( "No such directory " + mappedDirectory );
+				System.exit( 2 );
+			}
+			batch.setBufferAllocator( BufferAllocator.mapped( mappedDirectory ) );
+		}
+		ExecutorService workers = Executors.newFixedThreadPool( threads );
+		List<Future<String>> results = new ArrayList<Future<String>>();
+
+		long start = System.nanoTime();
+		for ( final File input : inputs ) {
+			results.add( workers.submit( new Callable<String>() {
+				public String call() throws IOException {
+					return batch.render( input );
+				}
+			} ) );
+		}
+
+		int failures = 0;
+		for ( int i = 0; i < results.size(); i++ ) {
+			try {
+				System.out.println( results.get( i ).get() );
+			} catch ( Exception e ) {
+				Throwable cause = e.getCause() != null ? e.getCause() : e;
+				System.err.println( inputs.get( i ).getName() + ": failed: " + cause.getMessage() );
+				failures++;
+			}
+		}
+		workers.shutdown();
+
+		System.out.printf( "%d images painted, %d failed, %d ms%n",
+				inputs.size() - failures, failures, ( System.nanoTime() - start ) / 1000000 );
+
+		System.exit( failures == 0 ? 0 : 1 );
+	}
+}
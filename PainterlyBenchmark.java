@@ -0,0 +1,490 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.Vector;
+
+/**
+ * Benchmarks for the stages of a Document render. Run with
+ * <code>java -Xmx5g -cp Painterly.jar PainterlyBenchmark [options] [images]</code>.
+ * 
+ * Each layer of the style is timed stage by stage (blur, luma conversion,
+ * Sobel, the grid error scan, tracing strokes and painting them) on a
+ * synthetic image and on any sample images given, each scaled to every
+ * size asked for. After its stages are timed a layer is painted for real,
+ * so the next layer is timed against a realistic canvas.
+ * 
+ * The same stages run under JMH with <code>gradle jmh</code>, through
+ * createStage().
+ */
+public class PainterlyBenchmark {
+	private final static String USAGE =
+		"Usage: PainterlyBenchmark [-mp 1,12,48] [-style name] [-warmup n] [-iterations n] [-legacy] [image ...]\n" +
+		"  -mp          image sizes in megapixels (default: 1,12,48)\n" +
+		"  -style       style to render with (default: impressionist)\n" +
+		"  -warmup      untimed runs of each stage (default: 3)\n" +
+		"  -iterations  timed runs of each stage (default: 5)\n" +
+		"  -legacy      also compare the Sobel pass and stroke painting with the older code\n" +
+		"  image        sample images, scaled to each size, timed as well as the synthetic one";
+	
+	private static int warmupIterations = 3;
+	private static int measuredIterations = 5;
+	
+	// strokes traced and painted by the stroke stages of a layer
+	private final static int STROKE_SAMPLE = 20000;
+	// random strokes painted by the legacy stroke comparison
+	private final static int STROKE_COUNT = 20000;
+
+	private final static float[] sobelXMatrix = {
+			-1.0f, 0.0f, 1.0f,
+			-2.0f, 0.0f , 2.0f,
+			-1.0f, 0.0f, 1.0f };
+	private final static float[] sobelYMatrix = {
+			-1.0f, -2.0f, -1.0f,
+			0f, 0f, 0f,
+			1.0f, 2.0f, 1.0f
+	};
+
+	private static abstract class Pass implements Runnable {
+		private final String name;
+
+		public Pass( String name ) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public abstract void run();
+	}
+
+	public static void main( String[] args ) throws Exception {
+		System.setProperty( "java.awt.headless", "true" );
+		
+		String sizes = "1,12,48";
+		PainterlyStyle style = PainterlyStyle.IMPRESSIONIST_STYLE;
+		boolean legacy = false;
+		List<File> images = new ArrayList<File>();
+		
+		try {
+			for ( int i = 0; i < args.length; i++ ) {
+				if ( args[i].equals( "-mp" ) ) {
+					sizes = args[++i];
+				} else if ( args[i].equals( "-style" ) ) {
+					style = PainterlyStyle.forName( args[++i] );
+				} else if ( args[i].equals( "-warmup" ) ) {
+					warmupIterations = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-iterations" ) ) {
+					measuredIterations = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-legacy" ) ) {
+					legacy = true;
+				} else {
+					images.add( new File( args[i] ) );
+				}
+			}
+		} catch ( RuntimeException e ) {
+			style = null;
+		}
+		if ( style == null || measuredIterations < 1 ) {
+			System.err.println( USAGE );
+			System.exit( 2 );
+		}
+		
+		List<BufferedImage> samples = new ArrayList<BufferedImage>();
+		for ( File f : images ) {
+			ImageInput input = new ImageInput();
+			try {
+				samples.add( input.read( f ) );
+			} catch ( IOException e ) {
+				System.err.println( "Could not read " + f + ": " + e.getMessage() );
+				System.exit( 2 );
+			}
+			System.out.println( f.getName() + ": " + input );
+		}
+		
+		for ( String size : sizes.split( "," ) ) {
+			float megapixels = Float.parseFloat( size );
+			int width = (int)Math.round( Math.sqrt( megapixels * 1e6 * 4 / 3 ) );
+			int height = width * 3 / 4;
+			
+			benchmarkStages( "synthetic", createSyntheticImage( width, height ), style );
+			for ( int i = 0; i < samples.size(); i++ ) {
+				benchmarkStages( images.get( i ).getName(), scale( samples.get( i ), megapixels ), style );
+			}
+		}
+		
+		if ( legacy ) {
+			benchmarkLegacy( 1024, 1024 );
+		}
+	}
+	
+	/**
+	 * Times every stage of every layer of a render of the image.
+	 */
+	static void benchmarkStages( String name, BufferedImage image, PainterlyStyle style ) throws Exception {
+		System.out.printf( "%n%s, %dx%d (%.1f MP)%n", name, image.getWidth(), image.getHeight(),
+				image.getWidth() * (double)image.getHeight() / 1e6 );
+		
+		Document document = createDocument( image, style );
+		BufferedImage source = createIntArgb( image );
+		
+		for ( int i = style.getMaximumBrushSize(); i > 1; i /= 2 ) {
+			LayerStages layer = new LayerStages( document, source, i, style.getBlurFactor() );
+			
+			double trace = 0.0, java2d = 0.0, software = 0.0;
+			for ( Pass pass : layer.getPasses() ) {
+				double millis = measure( pass.getName() + ", brush " + i, pass );
+				if ( pass.getName().equals( "traceStroke" ) ) {
+					trace = millis;
+				} else if ( pass.getName().equals( "renderStroke" ) ) {
+					java2d = millis;
+				} else if ( pass.getName().equals( "rasterizeStroke" ) ) {
+					software = millis;
+				}
+			}
+			int strokes = layer.getSampleSize();
+			System.out.printf( "  %d strokes: traceStroke %.0f/s, renderStroke %.0f/s, rasterizeStroke %.0f/s%n",
+					strokes, strokes * 1000 / trace, strokes * 1000 / java2d, strokes * 1000 / software );
+			
+			document.setUseStrokeRasterizer( false );
+			document.paintLayer( i, new SplittableRandom( i ) );
+		}
+	}
+	
+	/**
+	 * Returns one stage of a render, ready to be run over and over, for
+	 * harnesses such as the JMH benchmarks that cannot see the default
+	 * package. The layers with larger brushes are painted first and the
+	 * stages before this one are run once, so the stage starts from the
+	 * state it has in a render.
+	 * 
+	 * @param image "synthetic", or the path of a sample image
+	 * @param stage blur, luma, sobel, scan, traceStroke, renderStroke or
+	 *        rasterizeStroke
+	 * @throws IllegalArgumentException if the style, the brush size or the
+	 *         stage is unknown
+	 */
+	public static Runnable createStage( String image, float megapixels, String styleName, int brushSize, String stage ) throws Exception {
+		PainterlyStyle style = PainterlyStyle.forName( styleName );
+		if ( style == null ) {
+			throw new IllegalArgumentException( "Unknown style: " + styleName );
+		}
+		
+		BufferedImage sized;
+		if ( image.equals( "synthetic" ) ) {
+			int width = (int)Math.round( Math.sqrt( megapixels * 1e6 * 4 / 3 ) );
+			sized = createSyntheticImage( width, width * 3 / 4 );
+		} else {
+			sized = scale( new ImageInput().read( new File( image ) ), megapixels );
+		}
+		
+		Document document = createDocument( sized, style );
+		int i = style.getMaximumBrushSize();
+		for ( ; i > brushSize; i /= 2 ) {
+			document.beginLayer( i );
+			document.paintLayer( i, new SplittableRandom( i ) );
+		}
+		if ( i != brushSize || i < 2 ) {
+			throw new IllegalArgumentException( styleName + " has no layer with brush " + brushSize );
+		}
+		
+		LayerStages layer = new LayerStages( document, createIntArgb( sized ), brushSize, style.getBlurFactor() );
+		for ( Pass pass : layer.getPasses() ) {
+			if ( pass.getName().equals( stage ) ) {
+				return pass;
+			}
+			pass.run();
+		}
+		throw new IllegalArgumentException( "Unknown stage: " + stage );
+	}
+	
+	private static Document createDocument( BufferedImage image, PainterlyStyle style ) {
+		Document document = new Document();
+		document.setStyle( style );
+		document.setAnalysisCacheBudget( 0 );
+		document.setSourceImage( image );
+		
+		return document;
+	}
+	
+	/**
+	 * The stages of one layer, in the order a render runs them. Each stage
+	 * works on what the one before it left, so they have to be run in order
+	 * the first time.
+	 */
+	private static class LayerStages {
+		private final List<Pass> passes = new ArrayList<Pass>();
+		
+		private final BufferedImage[] blurred = new BufferedImage[1];
+		private final BufferedImage[] luma = new BufferedImage[1];
+		private final List<Point2D.Float> starts = new ArrayList<Point2D.Float>();
+		private final List<Point2D.Float> sample = new ArrayList<Point2D.Float>();
+		private final StrokeBuffer strokes = new StrokeBuffer();
+		
+		public LayerStages( final Document document, final BufferedImage source, final int brushSize, final float blurFactor ) {
+			final GradientField field = new GradientField( source.getWidth(), source.getHeight() );
+			
+			document.beginLayer( brushSize );
+			
+			passes.add( new Pass( "blur" ) {
+				public void run() {
+					blurred[0] = Document.blur( source, brushSize, blurFactor );
+				}
+			} );
+			passes.add( new Pass( "luma" ) {
+				public void run() {
+					luma[0] = Document.toLuma( blurred[0] );
+				}
+			} );
+			passes.add( new Pass( "sobel" ) {
+				public void run() {
+					field.computeSobel( luma[0] );
+				}
+			} );
+			passes.add( new Pass( "scan" ) {
+				public void run() {
+					starts.clear();
+					document.invalidateErrorMap();
+					starts.addAll( document.findStrokeStarts( brushSize, new SplittableRandom( 1 ) ) );
+				}
+			} );
+			passes.add( new Pass( "traceStroke" ) {
+				public void run() {
+					if ( sample.isEmpty() ) {
+						// spread the sample over the whole canvas
+						int size = Math.min( STROKE_SAMPLE, starts.size() );
+						for ( int j = 0; j < size; j++ ) {
+							sample.add( starts.get( (int)( (long)j * starts.size() / size ) ) );
+						}
+					}
+					
+					SplittableRandom random = new SplittableRandom( 1 );
+					strokes.clear();
+					
+					for ( Point2D.Float start : sample ) {
+						int color = document.createStrokeColor( (int)start.x, (int)start.y, random ).getRGB();
+						document.traceStroke( brushSize, start.x, start.y, color, strokes );
+						strokes.endStroke( color, brushSize );
+					}
+				}
+			} );
+			passes.add( new Pass( "renderStroke" ) {
+				public void run() {
+					document.setUseStrokeRasterizer( false );
+					document.paintStrokes( strokes );
+				}
+			} );
+			passes.add( new Pass( "rasterizeStroke" ) {
+				public void run() {
+					document.setUseStrokeRasterizer( true );
+					document.paintStrokes( strokes );
+				}
+			} );
+		}
+		
+		public List<Pass> getPasses() {
+			return passes;
+		}
+		
+		public int getSampleSize() {
+			return sample.size();
+		}
+	}
+	
+	/**
+	 * Runs the comparisons with the code the stages replaced.
+	 */
+	static void benchmarkLegacy( int width, int height ) {
+		System.out.printf( "%nLegacy comparison, %dx%d%n", width, height );
+		
+		final BufferedImage luma = Document.toLuma( createSyntheticImage( width, height ) );
+		final GradientField field = new GradientField( width, height );
+
+		double before = measure( new Pass( "Sobel (getRGB convolution)" ) {
+			public void run() {
+				legacySobel( luma, field );
+			}
+		} );
+		double after = measure( new Pass( "Sobel (raw luma raster)" ) {
+			public void run() {
+				field.computeSobel( luma );
+			}
+		} );
+		System.out.printf( "Sobel speedup: %.1fx%n", before / after );
+		
+		benchmarkStrokes( width, height );
+	}
+	
+	/**
+	 * Paints the same random strokes with Java2D and with StrokeRasterizer
+	 * and reports strokes per second for each.
+	 */
+	static void benchmarkStrokes( int width, int height ) {
+		final BufferedImage target = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+		final CoverageMask mask = new CoverageMask( width, height );
+		final Document document = new Document();
+		final StrokeRasterizer rasterizer = new StrokeRasterizer();
+		rasterizer.setTarget( IntBuffer.wrap( ((DataBufferInt)target.getRaster().getDataBuffer()).getData() ), width, height, mask );
+		
+		Random random = new Random( 2 );
+		final StrokeBuffer strokes = new StrokeBuffer();
+		
+		for ( int i = 0; i < STROKE_COUNT; i++ ) {
+			// a layer has a quarter of the strokes of the layer with half its
+			// brush size, so small brushes dominate a render
+			int layer = 0;
+			while ( layer < 3 && random.nextInt( 4 ) == 0 ) {
+				layer++;
+			}
+			float brush = 2 << layer;
+			
+			Vector<Point2D.Float> path = new Vector<Point2D.Float>();
+			float x = random.nextInt( width ), y = random.nextInt( height );
+			double angle = random.nextDouble() * Math.PI * 2;
+			for ( int j = 4 + random.nextInt( 12 ); j > 0; j-- ) {
+				path.add( new Point2D.Float( x, y ) );
+				angle += ( random.nextDouble() - 0.5 ) * 0.5;
+				x = Math.max( 0, Math.min( width - 1, x + brush * (float)Math.cos( angle ) ) );
+				y = Math.max( 0, Math.min( height - 1, y + brush * (float)Math.sin( angle ) ) );
+			}
+			strokes.add( path, random.nextInt() | 0xff000000, brush );
+		}
+		
+		double java2d = measure( new Pass( "Strokes (Java2D)" ) {
+			public void run() {
+				for ( int i = 0; i < STROKE_COUNT; i++ ) {
+					document.renderStroke( target, mask, strokes, i );
+				}
+			}
+		} );
+		double software = measure( new Pass( "Strokes (StrokeRasterizer)" ) {
+			public void run() {
+				for ( int i = 0; i < STROKE_COUNT; i++ ) {
+					document.rasterizeStroke( rasterizer, strokes, i );
+				}
+			}
+		} );
+		System.out.printf( "Java2D: %.0f strokes/s, StrokeRasterizer: %.0f strokes/s%n",
+				STROKE_COUNT * 1000 / java2d, STROKE_COUNT * 1000 / software );
+	}
+
+	static BufferedImage createSyntheticImage( int width, int height ) {
+		BufferedImage image = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+		Graphics2D g = image.createGraphics();
+		Random random = new Random( 1 );
+
+		g.setPaint( new GradientPaint( 0, 0, Color.blue, width, height, Color.orange ) );
+		g.fillRect( 0, 0, width, height );
+		for ( int i = 0; i < 200; i++ ) {
+			g.setColor( new Color( random.nextInt() ) );
+			g.fillOval( random.nextInt( width ), random.nextInt( height ),
+					random.nextInt( width / 4 + 1 ), random.nextInt( height / 4 + 1 ) );
+		}
+		g.dispose();
+
+		return image;
+	}
+
+	static BufferedImage createIntArgb( BufferedImage image ) {
+		BufferedImage converted = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB );
+		Graphics2D g = converted.createGraphics();
+		g.drawImage( image, 0, 0, null );
+		g.dispose();
+
+		return converted;
+	}
+	
+	/**
+	 * Scales the image, keeping its aspect ratio, to about the given number
+	 * of megapixels.
+	 */
+	static BufferedImage scale( BufferedImage image, float megapixels ) {
+		double factor = Math.sqrt( megapixels * 1e6 / ( (double)image.getWidth() * image.getHeight() ) );
+		int width = (int)Math.round( image.getWidth() * factor );
+		int height = (int)Math.round( image.getHeight() * factor );
+		
+		BufferedImage scaled = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+		Graphics2D g = scaled.createGraphics();
+		g.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+		g.drawImage( image, 0, 0, width, height, null );
+		g.dispose();
+		
+		return scaled;
+	}
+
+	static double measure( Pass pass ) {
+		return measure( pass.getName(), pass );
+	}
+	
+	static double measure( String label, Pass pass ) {
+		for ( int i = 0; i < warmupIterations; i++ ) {
+			pass.run();
+		}
+
+		long start = System.nanoTime();
+		for ( int i = 0; i < measuredIterations; i++ ) {
+			pass.run();
+		}
+		double millis = ( System.nanoTime() - start ) / 1e6 / measuredIterations;
+
+		System.out.printf( "%-40s %10.2f ms/op%n", label, millis );
+
+		return millis;
+	}
+
+	/* the Sobel pass as Document implemented it before GradientField.computeSobel */
+
+	private static short doConvolution( int x, int y, BufferedImage source, float[] convolve ) {
+		short value = 0;
+		for ( int i = 0; i < 3; i++ ) {
+			for ( int j = 0; j < 3; j++ ) {
+				try {
+					int intensity = new Color( source.getRGB( x + i - 1, y + j - 1 ) ).getBlue();
+
+					value += intensity * convolve[j*3+i];
+				} catch ( Exception e ) {
+					// if we catch an exception, then
+					// probably we are out of bounds, so just ignore it
+				}
+			}
+		}
+		return value;
+	}
+
+	private static void legacySobel( BufferedImage luma, GradientField field ) {
+		for ( int y = 0; y < luma.getHeight(); ++y ) {
+			for ( int x = 0; x < luma.getWidth(); ++x ) {
+				field.set( x, y,
+						doConvolution( x, y, luma, sobelXMatrix ),
+						doConvolution( x, y, luma, sobelYMatrix ) );
+			}
+		}
+	}
+}
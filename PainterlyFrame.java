@@ -24,6 +24,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -37,15 +42,20 @@ import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JSlider;
 import javax.swing.JTabbedPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.WindowConstants;
 import javax.swing.border.Border;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 public class PainterlyFrame extends JFrame {
 	/**
@@ -77,17 +87,61 @@ public class PainterlyFrame extends JFrame {
 	private JSlider redJitter;
 	private JSlider greenJitter;
 	private JSlider blueJitter;
+	private JCheckBox interpolateGradients;
 	private JCheckBox drawEdges;
 	private JSlider edgeThreshold;
 	private JButton applyButton;
+	private JCheckBox livePreview;
+	private JProgressBar progressBar;
+	
+	// renders run one at a time, off the event dispatch thread
+	private ExecutorService renderer = Executors.newSingleThreadExecutor();
+	private CancellationToken currentRender = null;
+	
+	// previews are shrunk by powers of two to at most this many pixels
+	private final static int PREVIEW_PIXELS = 50000;
+	
+	// the full render starts once the parameters have not changed for this long
+	private final static int SETTLE_DELAY = 750;
+	private Timer settleTimer = new Timer( SETTLE_DELAY, new ActionListener() {
+		public void actionPerformed( ActionEvent e ) {
+			startRender( null );
+		}
+	} );
 
 	public PainterlyFrame() {
 		super( "CS798 Painterly Rendering Assignment" );
 		
+		settleTimer.setRepeats( false );
 		createLayout();
 		
 		setupMenu();
 		
+		_document.setRecordStrokes( true );
+		_document.setAnalysisCacheBudget( Runtime.getRuntime().maxMemory() / 4 );
+		_document.addStateChangeListener( new StateChangeListener() {
+			public void stateChanged( ) {
+			}
+			
+			public void layerPainted( final int layer, final int layerCount, BufferedImage frame ) {
+				SwingUtilities.invokeLater( new Runnable() {
+					public void run() {
+						progressBar.setMaximum( layerCount );
+						progressBar.setValue( layer );
+					}
+				} );
+			}
+			
+			public void renderFinished( final RenderStats stats ) {
+				SwingUtilities.invokeLater( new Runnable() {
+					public void run() {
+						progressBar.setToolTipText( String.format( "Painted %d strokes in %d ms",
+								stats.getStrokes(), stats.getWallNanos() / 1000000 ) );
+					}
+				} );
+			}
+		} );
+		
 		this.setSize( new Dimension( 800, 600 ) );
 		this.setDefaultCloseOperation( WindowConstants.EXIT_ON_CLOSE );
 	}
@@ -102,7 +156,7 @@ public class PainterlyFrame extends JFrame {
 			@Override
 			public void stateChanged(ChangeEvent e) {
 				_document.setMaximumBrushSize( maxBrushSize.getValue() );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Max Brush Size: " ) );
@@ -116,7 +170,7 @@ public class PainterlyFrame extends JFrame {
 				if ( minStrokeLength.getValue() > maxStrokeLength.getValue() ) {
 					maxStrokeLength.setValue( minStrokeLength.getValue() );
 				}
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Min Stroke Length: " ) );
@@ -130,7 +184,7 @@ public class PainterlyFrame extends JFrame {
 				if ( maxStrokeLength.getValue() < minStrokeLength.getValue() ) {
 					minStrokeLength.setValue( maxStrokeLength.getValue() );
 				}
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Max Stroke Length: " ) );
@@ -140,7 +194,7 @@ public class PainterlyFrame extends JFrame {
 		curvature.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setCurvatureFilter( (float)curvature.getValue() / 100.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Stroke Curvature: " ) );
@@ -151,14 +205,14 @@ public class PainterlyFrame extends JFrame {
 	
 	private Component createStyleTab() {
 		JPanel parametersFrame = new JPanel();
-		parametersFrame.setLayout( new GridLayout( 5, 2 ) );
+		parametersFrame.setLayout( new GridLayout( 6, 2 ) );
 		parametersFrame.setBorder( createEmptyBorder() );
 		
 		blurFactor = new JSlider( 0, 100, (int)( _document.getBlurFactor() * 100.0f ) );
 		blurFactor.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setBlurFactor( (float)blurFactor.getValue() / 100.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Blur Factor: " ) );
@@ -168,7 +222,7 @@ public class PainterlyFrame extends JFrame {
 		gridSize.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setGridSize( (float)gridSize.getValue() / 100.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Grid Size: " ) );
@@ -178,12 +232,23 @@ public class PainterlyFrame extends JFrame {
 		threshold.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setThreshold( (float)threshold.getValue() / 10.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Painting Accuracy: " ) );
 		parametersFrame.add( threshold );
 
+		interpolateGradients = new JCheckBox( "Smooth Strokes", _document.getInterpolateGradients() );
+		interpolateGradients.addItemListener( new ItemListener() {
+			@Override
+			public void itemStateChanged(ItemEvent e) {
+				_document.setInterpolateGradients( e.getStateChange() == ItemEvent.SELECTED );
+				parameterChanged();
+			}
+		} );
+		parametersFrame.add( interpolateGradients );
+		parametersFrame.add( new JLabel() );
+
 		drawEdges = new JCheckBox( "Trace Edges", _document.getDrawEdges() );
 		drawEdges.addItemListener( new ItemListener() {
 			@Override
@@ -194,7 +259,7 @@ public class PainterlyFrame extends JFrame {
 					_document.setDrawEdges( false );
 				}
 				edgeThreshold.setEnabled( _document.getDrawEdges() );					
-				applyButton.setEnabled( true );
+				parameterChanged();
 				
 			}
 		} );
@@ -206,7 +271,7 @@ public class PainterlyFrame extends JFrame {
 		edgeThreshold.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setEdgeThreshold( (float)edgeThreshold.getValue() );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Edge Threshold: " ) );
@@ -225,7 +290,7 @@ public class PainterlyFrame extends JFrame {
 			@Override
 			public void stateChanged(ChangeEvent e) {
 				_document.setColorOpacity( colorOpacity.getValue() );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Color Opacity: " ) );
@@ -235,7 +300,7 @@ public class PainterlyFrame extends JFrame {
 		hueJitter.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setHueJitter( (float)hueJitter.getValue() / 10.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Hue Jittering: " ) );
@@ -245,7 +310,7 @@ public class PainterlyFrame extends JFrame {
 		saturationJitter.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setSaturationJitter( (float)saturationJitter.getValue() / 10.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Saturation Jittering: " ) );
@@ -255,7 +320,7 @@ public class PainterlyFrame extends JFrame {
 		valueJitter.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setValueJitter( (float)valueJitter.getValue() / 10.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Value Jittering: " ) );
@@ -265,7 +330,7 @@ public class PainterlyFrame extends JFrame {
 		redJitter.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setRedJitter( (float)redJitter.getValue() / 10.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Red Jittering: " ) );
@@ -275,7 +340,7 @@ public class PainterlyFrame extends JFrame {
 		greenJitter.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setGreenJitter( (float)greenJitter.getValue() / 10.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Green Jittering: " ) );
@@ -285,7 +350,7 @@ public class PainterlyFrame extends JFrame {
 		blueJitter.addChangeListener( new ChangeListener() {
 			public void stateChanged( ChangeEvent e ) {
 				_document.setBlueJitter( (float)blueJitter.getValue() / 10.0f );
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		parametersFrame.add( new JLabel( "Blue Jittering: " ) );
@@ -328,7 +393,7 @@ public class PainterlyFrame extends JFrame {
 				}
 				
 				loadToolboxValuesFromDocument();
-				applyButton.setEnabled( true );
+				parameterChanged();
 			}
 		} );
 		
@@ -345,14 +410,22 @@ public class PainterlyFrame extends JFrame {
 		applyButton.addActionListener( new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
-				setCursor( new Cursor( Cursor.WAIT_CURSOR ) );
-				_document.doPainterly();
-				setCursor( new Cursor( Cursor.DEFAULT_CURSOR ) );
-				
-				applyButton.setEnabled( false );
+				startRender( null );
 			}
 		} );
-		toolboxFrame.add( applyButton, BorderLayout.SOUTH );
+		
+		livePreview = new JCheckBox( "Preview Changes", true );
+		livePreview.setToolTipText( "Paint a quick preview as parameters change and the full image once they settle" );
+		
+		progressBar = new JProgressBar();
+		progressBar.setBorder( BorderFactory.createCompoundBorder( createEmptyBorder(), progressBar.getBorder() ) );
+		
+		JPanel southPanel = new JPanel();
+		southPanel.setLayout( new GridLayout( 3, 1 ) );
+		southPanel.add( livePreview );
+		southPanel.add( progressBar );
+		southPanel.add( applyButton );
+		toolboxFrame.add( southPanel, BorderLayout.SOUTH );
 
 		JTabbedPane tabbedPane = PainterlyFrame.createTabbedPane( JTabbedPane.LEFT );
 		PainterlyFrame.addTab( tabbedPane, "Brush Properties", createBrushTab() );
@@ -364,6 +437,102 @@ public class PainterlyFrame extends JFrame {
 		return toolboxFrame;
 	}
 	
+	/**
+	 * Cancels the render in progress, if any, and paints the document again
+	 * on the rendering thread.
+	 * 
+	 * @param sourceFile if not null, the source image to load before painting
+	 */
+	private void startRender( final String sourceFile ) {
+		settleTimer.stop();
+		if ( currentRender != null ) {
+			currentRender.cancel();
+		}
+		final CancellationToken token = new CancellationToken();
+		currentRender = token;
+		
+		setCursor( new Cursor( Cursor.WAIT_CURSOR ) );
+		progressBar.setValue( 0 );
+		applyButton.setEnabled( false );
+		
+		renderer.submit( new Runnable() {
+			public void run() {
+				try {
+					if ( sourceFile != null ) {
+						_document.selectSourceFile( sourceFile );
+					}
+					_document.doPainterly( token );
+				} catch ( CancellationException e ) {
+					// superseded by a newer render
+				} finally {
+					SwingUtilities.invokeLater( new Runnable() {
+						public void run() {
+							renderFinished( token );
+						}
+					} );
+				}
+			}
+		} );
+	}
+	
+	/**
+	 * Cancels the render in progress, if any, and paints a preview on the
+	 * rendering thread, shrunk so it takes a fraction of a full render.
+	 */
+	private void startPreview() {
+		if ( currentRender != null ) {
+			currentRender.cancel();
+		}
+		final CancellationToken token = new CancellationToken();
+		currentRender = token;
+		
+		BufferedImage target = _document.getTargetImage();
+		int divisor = 2;
+		while ( (long)target.getWidth() * target.getHeight() / ( divisor * divisor ) > PREVIEW_PIXELS ) {
+			divisor *= 2;
+		}
+		final int previewDivisor = divisor;
+		
+		renderer.submit( new Runnable() {
+			public void run() {
+				try {
+					_document.doPreview( previewDivisor, token );
+				} catch ( CancellationException e ) {
+					// superseded by a newer render
+				} finally {
+					SwingUtilities.invokeLater( new Runnable() {
+						public void run() {
+							renderFinished( token );
+						}
+					} );
+				}
+			}
+		} );
+	}
+	
+	private void renderFinished( CancellationToken token ) {
+		if ( token == currentRender ) {
+			currentRender = null;
+			setCursor( new Cursor( Cursor.DEFAULT_CURSOR ) );
+		}
+	}
+	
+	/**
+	 * Called whenever a painting parameter changes. With previews on, a
+	 * preview is painted straight away and the full render is started once
+	 * the parameters settle. Otherwise a render that is still running is
+	 * using stale parameters, so it is restarted.
+	 */
+	private void parameterChanged() {
+		applyButton.setEnabled( true );
+		if ( livePreview.isSelected() && _document.getTargetImage() != null ) {
+			startPreview();
+			settleTimer.restart();
+		} else if ( currentRender != null ) {
+			startRender( null );
+		}
+	}
+	
 	private void loadToolboxValuesFromDocument() {
 		maxBrushSize.setValue( _document.getMaximumBrushSize() );
 		colorOpacity.setValue( _document.getColorOpacity() );
@@ -379,6 +548,7 @@ public class PainterlyFrame extends JFrame {
 		redJitter.setValue( (int)( _document.getRedJitter() * 10.0f ) );
 		greenJitter.setValue( (int)( _document.getGreenJitter() * 10.0f ) );
 		blueJitter.setValue( (int)( _document.getBlueJitter() * 10.0f ) );
+		interpolateGradients.setSelected( _document.getInterpolateGradients() );
 		drawEdges.setSelected( _document.getDrawEdges() );
 		edgeThreshold.setValue( (int)_document.getEdgeThreshold() );
 	}
@@ -403,6 +573,10 @@ public class PainterlyFrame extends JFrame {
 		saveMI.addActionListener( onSaveClick );
 		imageMenu.add( saveMI );
 		
+		JMenuItem exportStrokesMI = new JMenuItem( "Export Strokes..." );
+		exportStrokesMI.addActionListener( onExportStrokesClick );
+		imageMenu.add( exportStrokesMI );
+		
 		JMenuItem exitMI = new JMenuItem( "Exit" );
 		exitMI.addActionListener( onExitClick );
 		imageMenu.add( exitMI );
@@ -446,9 +620,7 @@ public class PainterlyFrame extends JFrame {
 			
 			int result = chooser.showOpenDialog( PainterlyFrame.this );
 			if ( result == JFileChooser.APPROVE_OPTION ) {
-				_document.selectSourceFile( chooser.getSelectedFile().getAbsolutePath() );
-				applyButton.setEnabled( true );
-				applyButton.doClick();
+				startRender( chooser.getSelectedFile().getAbsolutePath() );
 			} else {
 				return;
 			}
@@ -461,13 +633,35 @@ public class PainterlyFrame extends JFrame {
 			
 			int result = chooser.showSaveDialog( PainterlyFrame.this );
 			if ( result == JFileChooser.APPROVE_OPTION ) {
-				_document.saveDocument( chooser.getSelectedFile().getAbsolutePath() );
+				try {
+					_document.saveDocument( chooser.getSelectedFile().getAbsolutePath() );
+				} catch ( IOException ex ) {
+					JOptionPane.showMessageDialog( PainterlyFrame.this, "Could not save the image: " + ex.getMessage(),
+							"Save", JOptionPane.ERROR_MESSAGE );
+				}
 			} else {
 				return;
 			}
 		}
 	};
 
+	private ActionListener onExportStrokesClick = new ActionListener() {
+		public void actionPerformed( ActionEvent e ) {
+			JFileChooser chooser = new JFileChooser();
+			chooser.setFileFilter( new FileNameExtensionFilter( "SVG or PDF", "svg", "pdf" ) );
+			
+			int result = chooser.showSaveDialog( PainterlyFrame.this );
+			if ( result == JFileChooser.APPROVE_OPTION ) {
+				try {
+					_document.saveStrokes( chooser.getSelectedFile().getAbsolutePath() );
+				} catch ( IOException ex ) {
+					JOptionPane.showMessageDialog( PainterlyFrame.this, "Could not export the strokes: " + ex.getMessage(),
+							"Export Strokes", JOptionPane.ERROR_MESSAGE );
+				}
+			}
+		}
+	};
+
 	private ActionListener onExitClick = new ActionListener() {
 		public void actionPerformed( ActionEvent e ) {
 			System.exit( 0 );
@@ -17,8 +17,11 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 public class PainterlyPanel extends JPanel {
 	/**
@@ -35,9 +38,21 @@ public class PainterlyPanel extends JPanel {
 		_document = doc;
 		_document.addStateChangeListener( new StateChangeListener() {
 			public void stateChanged( ) {
-				setSize( getPreferredSize() );
+				SwingUtilities.invokeLater( new Runnable() {
+					public void run() {
+						setSize( getPreferredSize() );
+						repaint();
+					}
+				} );
+			}
+			
+			public void layerPainted( int layer, int layerCount, BufferedImage frame ) {
+				// repaint() is safe to call from the rendering thread
 				repaint();
 			}
+			
+			public void renderFinished( RenderStats stats ) {
+			}
 		} );
 	}
 	
@@ -48,7 +63,15 @@ public class PainterlyPanel extends JPanel {
 		
 		gX.setBackground( Color.LIGHT_GRAY );
 		gX.clearRect( 0, 0, this.getWidth(), this.getHeight() );
-		if ( _document.getTargetImage() != null ) {
+		BufferedImage preview = _document.getPreviewImage();
+		if ( _document.getTargetImage() != null && _document.isPreviewShown() && preview != null ) {
+			// stretched over the area of the painting it stands in for
+			gX.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+			gX.drawImage( preview, 
+					0, 0, 
+					_document.getTargetImage().getWidth(), _document.getTargetImage().getHeight(), 
+					null );
+		} else if ( _document.getTargetImage() != null ) {
 			gX.drawImage( _document.getTargetImage(), 
 					0, 0, 
 					_document.getTargetImage().getWidth(), _document.getTargetImage().getHeight(), 
@@ -14,33 +14,68 @@
  limitations under the License.
 */
 
-public class PainterlyStyle {
-	public final static PainterlyStyle IMPRESSIONIST_STYLE = new PainterlyStyle( 0.5f, 1.0f, 1.0f, 100.0f, 16, 4, 8, 255, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, false, 200.0f );
-	public final static PainterlyStyle EXPRESSIONIST_STYLE = new PainterlyStyle( 0.5f, 1.0f, 0.25f, 50.0f, 16, 10, 8, 192, 0.0f, 0.0f, 0.7f, 0.0f, 0.0f, 0.0f, false, 200.0f );
-	public final static PainterlyStyle COLORISTWASH_STYLE = new PainterlyStyle( 0.5f, 1.0f, 1.0f, 200.0f, 16, 4, 8, 128, 0.0f, 0.0f, 0.0f, 0.3f, 0.3f, 0.3f, false, 200.0f );
-	public final static PainterlyStyle POINTILLIST_STYLE = new PainterlyStyle( 0.5f, 0.5f, 1.0f, 100.0f, 0, 0, 4, 255, 0.3f, 0.0f, 0.99f, 0.0f, 0.0f, 0.0f, false, 200.0f );
-	
-	private float fSigma; // blur factor
-	private float fG; // grid size
-	private float fC; // curvature filter
-	private float threshold; // threshold
-	private int maxStrokeLength; // minimum stroke length
-	private int minStrokeLength;  // maximum stroke length
-	private int maxBrushSize; // the biggest brush used
-	private int colorOpacity;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Properties;
+
+/**
+ * The parameters of a painting. Styles are immutable, so one can be shared
+ * by any number of renders at once and used as a key: two styles are equal
+ * exactly when every parameter is, and the hash code depends only on the
+ * parameters. Use a Builder to make a style that differs from another in a
+ * few parameters.
+ *
+ * Styles are saved as text, one key=value pair per line with the keys
+ * toString() lists, or in a fixed binary layout of 75 bytes.
+ */
+public final class PainterlyStyle {
+	public final static PainterlyStyle IMPRESSIONIST_STYLE = new PainterlyStyle( 0.5f, 1.0f, 1.0f, 100.0f, 16, 4, 8, 255, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, false, 0.0f );
+	public final static PainterlyStyle EXPRESSIONIST_STYLE = new PainterlyStyle( 0.5f, 1.0f, 0.25f, 50.0f, 16, 10, 8, 192, 0.0f, 0.0f, 0.7f, 0.0f, 0.0f, 0.0f, false, 0.0f );
+	public final static PainterlyStyle COLORISTWASH_STYLE = new PainterlyStyle( 0.5f, 1.0f, 1.0f, 200.0f, 16, 4, 8, 128, 0.0f, 0.0f, 0.0f, 0.3f, 0.3f, 0.3f, false, 0.0f );
+	public final static PainterlyStyle POINTILLIST_STYLE = new PainterlyStyle( 0.5f, 0.5f, 1.0f, 100.0f, 0, 0, 4, 255, 0.3f, 0.0f, 0.99f, 0.0f, 0.0f, 0.0f, false, 0.0f );
+
+	// "PSTY", then a version byte
+	private final static int MAGIC = 0x50535459;
+	private final static int VERSION = 2;
+
+	private final float fSigma; // blur factor
+	private final float fG; // grid size
+	private final float fC; // curvature filter
+	private final float threshold; // threshold
+	private final int maxStrokeLength; // minimum stroke length
+	private final int minStrokeLength;  // maximum stroke length
+	private final int maxBrushSize; // the biggest brush used
+	private final int colorOpacity;
 	
 	// colour jittering
-	private float hJitter;
-	private float sJitter;
-	private float vJitter;
+	private final float hJitter;
+	private final float sJitter;
+	private final float vJitter;
 	
-	private float rJitter;
-	private float gJitter;
-	private float bJitter;
+	private final float rJitter;
+	private final float gJitter;
+	private final float bJitter;
 	
 	// drawing edges
-	private boolean drawEdges;
-	private float edgeThreshold;
+	private final boolean drawEdges;
+	private final float edgeThreshold;
+	
+	// seed for every random choice made while painting
+	private final long seed;
+	
+	// whether strokes follow the gradient between pixels or per pixel
+	private final boolean interpolateGradients;
 
 	public PainterlyStyle( float fSigma, float fG, float fC, float threshold, 
 			int maxStrokeLength, int minStrokeLength, int maxBrushSize, int colorOpacity,
@@ -62,135 +97,498 @@ public class PainterlyStyle {
 		this.gJitter = gJitter;
 		this.bJitter = bJitter;
 		this.drawEdges = drawEdges;
-		this.edgeThreshold = edgeThreshold;
-	}
-	
-	public PainterlyStyle( PainterlyStyle source ) {
-		this.fSigma = source.getBlurFactor();
-		this.fG = source.getGridSize();
-		this.fC = source.getCurvatureFilter();
-		this.threshold = source.getThreshold();
-		this.maxStrokeLength = source.getMaximumStrokeLength();
-		this.minStrokeLength = source.getMinimumStrokeLength();
-		this.maxBrushSize = source.getMaximumBrushSize();
-		this.colorOpacity = source.getColorOpacity();
-		this.hJitter = source.getHueJitter();
-		this.sJitter = source.getSaturationJitter();
-		this.vJitter = source.getValueJitter();
-		this.rJitter = source.getRedJitter();
-		this.gJitter = source.getGreenJitter();
-		this.bJitter = source.getBlueJitter();
+		this.edgeThreshold = checkEdgeThreshold( edgeThreshold );
+		this.seed = 0;
+		this.interpolateGradients = false;
+	}
+	
+	private PainterlyStyle( Builder builder ) {
+		this.fSigma = builder.fSigma;
+		this.fG = builder.fG;
+		this.fC = builder.fC;
+		this.threshold = builder.threshold;
+		this.maxStrokeLength = builder.maxStrokeLength;
+		this.minStrokeLength = builder.minStrokeLength;
+		this.maxBrushSize = builder.maxBrushSize;
+		this.colorOpacity = builder.colorOpacity;
+		this.hJitter = builder.hJitter;
+		this.sJitter = builder.sJitter;
+		this.vJitter = builder.vJitter;
+		this.rJitter = builder.rJitter;
+		this.gJitter = builder.gJitter;
+		this.bJitter = builder.bJitter;
+		this.drawEdges = builder.drawEdges;
+		this.edgeThreshold = checkEdgeThreshold( builder.edgeThreshold );
+		this.seed = builder.seed;
+		this.interpolateGradients = builder.interpolateGradients;
 	}
 
-	public void setMaximumBrushSize( int newValue ) {
-		maxBrushSize = newValue;		
+	/**
+	 * The edge threshold is a percentage of the strongest gradient, so
+	 * anything above 100 would trace no edges at all.
+	 */
+	private static float checkEdgeThreshold( float edgeThreshold ) {
+		if ( !( edgeThreshold >= 0.0f && edgeThreshold <= 100.0f ) ) {
+			throw new IllegalArgumentException( "Edge threshold " + edgeThreshold + " is not between 0 and 100" );
+		}
+		return edgeThreshold;
 	}
-	public int getMaximumBrushSize() {
-		return maxBrushSize;
+	
+	/**
+	 * Makes styles, starting from the parameters of an existing one.
+	 * Builders are not thread-safe; the styles they build are.
+	 */
+	public static class Builder {
+		private float fSigma;
+		private float fG;
+		private float fC;
+		private float threshold;
+		private int maxStrokeLength;
+		private int minStrokeLength;
+		private int maxBrushSize;
+		private int colorOpacity;
+		private float hJitter;
+		private float sJitter;
+		private float vJitter;
+		private float rJitter;
+		private float gJitter;
+		private float bJitter;
+		private boolean drawEdges;
+		private float edgeThreshold;
+		private long seed;
+		private boolean interpolateGradients;
+		
+		/**
+		 * Starts from the Impressionist style.
+		 */
+		public Builder() {
+			this( IMPRESSIONIST_STYLE );
+		}
+		
+		public Builder( PainterlyStyle source ) {
+			fSigma = source.fSigma;
+			fG = source.fG;
+			fC = source.fC;
+			threshold = source.threshold;
+			maxStrokeLength = source.maxStrokeLength;
+			minStrokeLength = source.minStrokeLength;
+			maxBrushSize = source.maxBrushSize;
+			colorOpacity = source.colorOpacity;
+			hJitter = source.hJitter;
+			sJitter = source.sJitter;
+			vJitter = source.vJitter;
+			rJitter = source.rJitter;
+			gJitter = source.gJitter;
+			bJitter = source.bJitter;
+			drawEdges = source.drawEdges;
+			edgeThreshold = source.edgeThreshold;
+			seed = source.seed;
+			interpolateGradients = source.interpolateGradients;
+		}
+		
+		public PainterlyStyle build() {
+			return new PainterlyStyle( this );
+		}
+		
+		public Builder setSeed( long newValue ) {
+			seed = newValue;
+			return this;
+		}
+		public Builder setMaximumBrushSize( int newValue ) {
+			maxBrushSize = newValue;
+			return this;
+		}
+		public Builder setColorOpacity( int newValue ) {
+			colorOpacity = newValue;
+			return this;
+		}
+		public Builder setBlurFactor( float newValue ) {
+			fSigma = newValue;
+			return this;
+		}
+		public Builder setGridSize( float newValue ) {
+			fG = newValue;
+			return this;
+		}
+		public Builder setCurvatureFilter( float newValue ) {
+			fC = newValue;
+			return this;
+		}
+		public Builder setThreshold( float newValue ) {
+			threshold = newValue;
+			return this;
+		}
+		public Builder setMinimumStrokeLength( int newValue ) {
+			minStrokeLength = newValue;
+			return this;
+		}
+		public Builder setMaximumStrokeLength( int newValue ) {
+			maxStrokeLength = newValue;
+			return this;
+		}
+		public Builder setHueJitter( float newValue ) {
+			hJitter = newValue;
+			return this;
+		}
+		public Builder setSaturationJitter( float newValue ) {
+			sJitter = newValue;
+			return this;
+		}
+		public Builder setValueJitter( float newValue ) {
+			vJitter = newValue;
+			return this;
+		}
+		public Builder setRedJitter( float newValue ) {
+			rJitter = newValue;
+			return this;
+		}
+		public Builder setGreenJitter( float newValue ) {
+			gJitter = newValue;
+			return this;
+		}
+		public Builder setBlueJitter( float newValue ) {
+			bJitter = newValue;
+			return this;
+		}
+		public Builder setDrawEdges( boolean newValue ) {
+			drawEdges = newValue;
+			return this;
+		}
+		public Builder setEdgeThreshold( float newValue ) {
+			edgeThreshold = newValue;
+			return this;
+		}
+		/**
+		 * Makes strokes follow the gradient interpolated between pixels,
+		 * which gives smoother curves, rather than the gradient of the pixel
+		 * each control point falls in.
+		 */
+		public Builder setInterpolateGradients( boolean newValue ) {
+			interpolateGradients = newValue;
+			return this;
+		}
+	}
+
+	/**
+	 * Returns the predefined style with the given name (for example
+	 * "impressionist" or "colorist-wash"), or null if there is none.
+	 */
+	public static PainterlyStyle forName( String name ) {
+		String key = name.toLowerCase().replaceAll( "[^a-z]", "" );
+		
+		if ( key.equals( "impressionist" ) ) {
+			return IMPRESSIONIST_STYLE;
+		} else if ( key.equals( "expressionist" ) ) {
+			return EXPRESSIONIST_STYLE;
+		} else if ( key.equals( "coloristwash" ) ) {
+			return COLORISTWASH_STYLE;
+		} else if ( key.equals( "pointillist" ) ) {
+			return POINTILLIST_STYLE;
+		}
+		return null;
 	}
 	
-	public void setColorOpacity( int newValue ) {
-		colorOpacity = newValue;
+	/**
+	 * Reads a style from a properties file. The optional "style" key names
+	 * a predefined style to start from (Impressionist by default); every
+	 * other key overrides the parameter of the same name, e.g.
+	 * "maximumBrushSize=12" or "drawEdges=true".
+	 */
+	public static PainterlyStyle load( File file ) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream( file );
+		try {
+			properties.load( in );
+		} finally {
+			in.close();
+		}
+		
+		try {
+			return fromProperties( properties );
+		} catch ( IllegalArgumentException e ) {
+			throw new IOException( "Malformed style file " + file + ": " + e.getMessage() );
+		}
 	}
-	public int getColorOpacity() {
-		return colorOpacity;
+	
+	/**
+	 * Reads a style from key=value pairs separated by white space, as
+	 * toString() writes them or load() reads them.
+	 *
+	 * @throws IllegalArgumentException if a value is malformed or the style
+	 * named is unknown
+	 */
+	public static PainterlyStyle parse( String text ) {
+		Properties properties = new Properties();
+		try {
+			properties.load( new StringReader( text.trim().replaceAll( "\\s+", "\n" ) ) );
+		} catch ( IOException e ) {
+			throw new IllegalArgumentException( e );
+		}
+		return fromProperties( properties );
 	}
 	
-	public void setBlurFactor( float newValue ) {	
-		fSigma = newValue;
+	private static PainterlyStyle fromProperties( Properties properties ) {
+		PainterlyStyle base = IMPRESSIONIST_STYLE;
+		if ( properties.getProperty( "style" ) != null ) {
+			base = forName( properties.getProperty( "style" ) );
+			if ( base == null ) {
+				throw new IllegalArgumentException( "Unknown style: " + properties.getProperty( "style" ) );
+			}
+		}
+		
+		return new Builder( base )
+			.setBlurFactor( getFloat( properties, "blurFactor", base.fSigma ) )
+			.setGridSize( getFloat( properties, "gridSize", base.fG ) )
+			.setCurvatureFilter( getFloat( properties, "curvatureFilter", base.fC ) )
+			.setThreshold( getFloat( properties, "threshold", base.threshold ) )
+			.setMaximumStrokeLength( getInt( properties, "maximumStrokeLength", base.maxStrokeLength ) )
+			.setMinimumStrokeLength( getInt( properties, "minimumStrokeLength", base.minStrokeLength ) )
+			.setMaximumBrushSize( getInt( properties, "maximumBrushSize", base.maxBrushSize ) )
+			.setColorOpacity( getInt( properties, "colorOpacity", base.colorOpacity ) )
+			.setHueJitter( getFloat( properties, "hueJitter", base.hJitter ) )
+			.setSaturationJitter( getFloat( properties, "saturationJitter", base.sJitter ) )
+			.setValueJitter( getFloat( properties, "valueJitter", base.vJitter ) )
+			.setRedJitter( getFloat( properties, "redJitter", base.rJitter ) )
+			.setGreenJitter( getFloat( properties, "greenJitter", base.gJitter ) )
+			.setBlueJitter( getFloat( properties, "blueJitter", base.bJitter ) )
+			.setDrawEdges( Boolean.parseBoolean( properties.getProperty( "drawEdges", Boolean.toString( base.drawEdges ) ).trim() ) )
+			.setEdgeThreshold( getFloat( properties, "edgeThreshold", base.edgeThreshold ) )
+			.setSeed( Long.parseLong( properties.getProperty( "seed", Long.toString( base.seed ) ).trim() ) )
+			.setInterpolateGradients( Boolean.parseBoolean( properties.getProperty( "interpolateGradients", Boolean.toString( base.interpolateGradients ) ).trim() ) )
+			.build();
 	}
-	public float getBlurFactor() {
-		return fSigma;
+	
+	/**
+	 * Writes every parameter to a properties file that load() reads back
+	 * as an equal style.
+	 */
+	public void save( File file ) throws IOException {
+		OutputStream out = new FileOutputStream( file );
+		try {
+			out.write( ( toString().replace( ' ', '\n' ) + "\n" ).getBytes( "ISO-8859-1" ) );
+		} finally {
+			out.close();
+		}
 	}
 	
-	public void setGridSize( float newValue ) {
-		fG = newValue;
+	/**
+	 * Writes the style in its binary layout: a magic number and version,
+	 * then the parameters in the order the constructor takes them, the
+	 * seed and whether gradients are interpolated.
+	 */
+	public void write( DataOutput out ) throws IOException {
+		out.writeInt( MAGIC );
+		out.writeByte( VERSION );
+		out.writeFloat( fSigma );
+		out.writeFloat( fG );
+		out.writeFloat( fC );
+		out.writeFloat( threshold );
+		out.writeInt( maxStrokeLength );
+		out.writeInt( minStrokeLength );
+		out.writeInt( maxBrushSize );
+		out.writeInt( colorOpacity );
+		out.writeFloat( hJitter );
+		out.writeFloat( sJitter );
+		out.writeFloat( vJitter );
+		out.writeFloat( rJitter );
+		out.writeFloat( gJitter );
+		out.writeFloat( bJitter );
+		out.writeBoolean( drawEdges );
+		out.writeFloat( edgeThreshold );
+		out.writeLong( seed );
+		out.writeBoolean( interpolateGradients );
 	}
-	public float getGridSize() {
-		return fG;
+	
+	/**
+	 * Reads a style written by write(), or by the first version of it,
+	 * which did not interpolate gradients.
+	 *
+	 * @throws IOException if the data is not a style, is from a later
+	 * version or holds an out of range value
+	 */
+	public static PainterlyStyle read( DataInput in ) throws IOException {
+		if ( in.readInt() != MAGIC ) {
+			throw new IOException( "Not a painterly style" );
+		}
+		int version = in.readUnsignedByte();
+		if ( version < 1 || version > VERSION ) {
+			throw new IOException( "Unsupported style version " + version );
+		}
+		Builder builder = new Builder()
+			.setBlurFactor( in.readFloat() )
+			.setGridSize( in.readFloat() )
+			.setCurvatureFilter( in.readFloat() )
+			.setThreshold( in.readFloat() )
+			.setMaximumStrokeLength( in.readInt() )
+			.setMinimumStrokeLength( in.readInt() )
+			.setMaximumBrushSize( in.readInt() )
+			.setColorOpacity( in.readInt() )
+			.setHueJitter( in.readFloat() )
+			.setSaturationJitter( in.readFloat() )
+			.setValueJitter( in.readFloat() )
+			.setRedJitter( in.readFloat() )
+			.setGreenJitter( in.readFloat() )
+			.setBlueJitter( in.readFloat() )
+			.setDrawEdges( in.readBoolean() )
+			.setEdgeThreshold( in.readFloat() )
+			.setSeed( in.readLong() )
+			.setInterpolateGradients( version >= 2 && in.readBoolean() );
+		try {
+			return builder.build();
+		} catch ( IllegalArgumentException e ) {
+			throw new IOException( "Malformed style: " + e.getMessage() );
+		}
 	}
 	
-	public void setCurvatureFilter( float newValue ) {
-		fC = newValue;
+	/**
+	 * Returns the style's binary layout, which is the same for equal styles.
+	 */
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream( 75 );
+		try {
+			write( new DataOutputStream( bytes ) );
+		} catch ( IOException e ) {
+			throw new IllegalStateException( e );
+		}
+		return bytes.toByteArray();
 	}
-	public float getCurvatureFilter() {
-		return fC;
+	
+	public static PainterlyStyle fromBytes( byte[] bytes ) throws IOException {
+		return read( new DataInputStream( new ByteArrayInputStream( bytes ) ) );
 	}
 	
-	public void setThreshold( float newValue ) {
-		threshold = newValue;
+	/**
+	 * Compares floats by their bits, as Float.equals() does, so equality is
+	 * consistent with hashCode() even for NaN and -0.
+	 */
+	public boolean equals( Object o ) {
+		if ( o == this ) {
+			return true;
+		}
+		if ( !( o instanceof PainterlyStyle ) ) {
+			return false;
+		}
+		PainterlyStyle other = (PainterlyStyle)o;
+		return Float.floatToIntBits( fSigma ) == Float.floatToIntBits( other.fSigma )
+			&& Float.floatToIntBits( fG ) == Float.floatToIntBits( other.fG )
+			&& Float.floatToIntBits( fC ) == Float.floatToIntBits( other.fC )
+			&& Float.floatToIntBits( threshold ) == Float.floatToIntBits( other.threshold )
+			&& maxStrokeLength == other.maxStrokeLength
+			&& minStrokeLength == other.minStrokeLength
+			&& maxBrushSize == other.maxBrushSize
+			&& colorOpacity == other.colorOpacity
+			&& Float.floatToIntBits( hJitter ) == Float.floatToIntBits( other.hJitter )
+			&& Float.floatToIntBits( sJitter ) == Float.floatToIntBits( other.sJitter )
+			&& Float.floatToIntBits( vJitter ) == Float.floatToIntBits( other.vJitter )
+			&& Float.floatToIntBits( rJitter ) == Float.floatToIntBits( other.rJitter )
+			&& Float.floatToIntBits( gJitter ) == Float.floatToIntBits( other.gJitter )
+			&& Float.floatToIntBits( bJitter ) == Float.floatToIntBits( other.bJitter )
+			&& drawEdges == other.drawEdges
+			&& Float.floatToIntBits( edgeThreshold ) == Float.floatToIntBits( other.edgeThreshold )
+			&& seed == other.seed
+			&& interpolateGradients == other.interpolateGradients;
 	}
-	public float getThreshold() {
-		return threshold;
+	
+	/**
+	 * Depends only on the parameters, so it is the same in every run.
+	 */
+	public int hashCode() {
+		int hash = Float.floatToIntBits( fSigma );
+		hash = 31 * hash + Float.floatToIntBits( fG );
+		hash = 31 * hash + Float.floatToIntBits( fC );
+		hash = 31 * hash + Float.floatToIntBits( threshold );
+		hash = 31 * hash + maxStrokeLength;
+		hash = 31 * hash + minStrokeLength;
+		hash = 31 * hash + maxBrushSize;
+		hash = 31 * hash + colorOpacity;
+		hash = 31 * hash + Float.floatToIntBits( hJitter );
+		hash = 31 * hash + Float.floatToIntBits( sJitter );
+		hash = 31 * hash + Float.floatToIntBits( vJitter );
+		hash = 31 * hash + Float.floatToIntBits( rJitter );
+		hash = 31 * hash + Float.floatToIntBits( gJitter );
+		hash = 31 * hash + Float.floatToIntBits( bJitter );
+		hash = 31 * hash + ( drawEdges ? 1 : 0 );
+		hash = 31 * hash + Float.floatToIntBits( edgeThreshold );
+		hash = 31 * hash + (int)( seed ^ ( seed >>> 32 ) );
+		hash = 31 * hash + ( interpolateGradients ? 1 : 0 );
+		return hash;
+	}
+	
+	/**
+	 * Lists the style's parameters with the keys load() reads, for logs and
+	 * render reports.
+	 */
+	public String toString() {
+		return "blurFactor=" + fSigma + " gridSize=" + fG + " curvatureFilter=" + fC + " threshold=" + threshold +
+			" maximumStrokeLength=" + maxStrokeLength + " minimumStrokeLength=" + minStrokeLength +
+			" maximumBrushSize=" + maxBrushSize + " colorOpacity=" + colorOpacity +
+			" hueJitter=" + hJitter + " saturationJitter=" + sJitter + " valueJitter=" + vJitter +
+			" redJitter=" + rJitter + " greenJitter=" + gJitter + " blueJitter=" + bJitter +
+			" drawEdges=" + drawEdges + " edgeThreshold=" + edgeThreshold + " seed=" + seed +
+			" interpolateGradients=" + interpolateGradients;
 	}
 	
-	public void setMinimumStrokeLength( int newValue ) {
-		minStrokeLength = newValue;
+	private static float getFloat( Properties properties, String key, float defaultValue ) {
+		String value = properties.getProperty( key );
+		return value == null ? defaultValue : Float.parseFloat( value.trim() );
+	}
+	private static int getInt( Properties properties, String key, int defaultValue ) {
+		String value = properties.getProperty( key );
+		return value == null ? defaultValue : Integer.parseInt( value.trim() );
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+	public int getMaximumBrushSize() {
+		return maxBrushSize;
+	}
+	public int getColorOpacity() {
+		return colorOpacity;
+	}
+	public float getBlurFactor() {
+		return fSigma;
+	}
+	public float getGridSize() {
+		return fG;
+	}
+	public float getCurvatureFilter() {
+		return fC;
+	}
+	public float getThreshold() {
+		return threshold;
 	}
 	public int getMinimumStrokeLength() {
 		return minStrokeLength;
 	}
-	
-	public void setMaximumStrokeLength( int newValue ) {
-		maxStrokeLength = newValue;
-	}
 	public int getMaximumStrokeLength() {
 		return maxStrokeLength;
 	}
-
-	public void setHueJitter( float newValue ) {
-		hJitter = newValue;
-	}
 	public float getHueJitter() {
 		return hJitter;
 	}	
-	
-	public void setSaturationJitter( float newValue ) {
-		sJitter = newValue;
-	}
 	public float getSaturationJitter() {
 		return sJitter;
 	}
-	
-	public void setValueJitter( float newValue ) {
-		vJitter = newValue;
-	}
 	public float getValueJitter() {
 		return vJitter;
 	}
-	
-	public void setRedJitter( float newValue ) {
-		rJitter = newValue;
-	}
 	public float getRedJitter() {
 		return rJitter;
 	}
-	
-	public void setGreenJitter( float newValue ) {
-		gJitter = newValue;
-	}
 	public float getGreenJitter() {
 		return gJitter;
 	}
-	
-	public void setBlueJitter( float newValue ) {
-		bJitter = newValue;
-	}
 	public float getBlueJitter() {
 		return bJitter;
 	}
-	
-	public void setDrawEdges( boolean newValue ) {
-		drawEdges = newValue;
-	}
 	public boolean getDrawEdges() {
 		return drawEdges;
 	}
-	
-	public void setEdgeThreshold( float newValue ) {
-		edgeThreshold = newValue;
-	}
 	public float getEdgeThreshold() {
 		return edgeThreshold;
 	}
+	public boolean getInterpolateGradients() {
+		return interpolateGradients;
+	}
 };
@@ -0,0 +1,320 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of finished paintings, so a source painted
+ * again with the same style is returned without painting a stroke. Entries
+ * are keyed by the content of the source, not its identity: the key is a
+ * SHA-256 digest of the source's pixels, its size, the style's binary
+ * layout, which includes the seed, and the render options that change the
+ * painting.
+ *
+ * Paintings are kept in memory up to one budget and, when the cache has a
+ * directory, written there as PNG files up to another. Files are used in
+ * the order of their modification times, which hits refresh, so the disk
+ * store keeps its recency across runs and can be shared by processes.
+ */
+public class RenderCache {
+	private final static String SUFFIX = ".png";
+	
+	private final LinkedHashMap<String, int[]> entries = new LinkedHashMap<String, int[]>( 16, 0.75f, true );
+	private long budget;
+	private long used = 0;
+	
+	private final File directory;
+	private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>( 16, 0.75f, true );
+	private long diskBudget;
+	private long diskUsed = 0;
+	
+	private long hits = 0;
+	private long diskHits = 0;
+	private long misses = 0;
+	
+	/**
+	 * Creates a cache held only in memory.
+	 *
+	 * @param budget the most memory, in bytes, the cached paintings may
+	 * occupy
+	 */
+	public RenderCache( long budget ) {
+		this.budget = budget;
+		this.directory = null;
+	}
+	
+	/**
+	 * Creates a cache that also keeps paintings in the directory, which is
+	 * created if need be. Files already there are taken into the cache.
+	 *
+	 * @param diskBudget the most bytes the files may take up
+	 */
+	public RenderCache( long budget, File directory, long diskBudget ) throws IOException {
+		this.budget = budget;
+		this.directory = directory;
+		this.diskBudget = diskBudget;
+		
+		if ( !directory.isDirectory() && !directory.mkdirs() ) {
+			throw new IOException( "Could not create " + directory );
+		}
+		File[] existing = directory.listFiles();
+		if ( existing == null ) {
+			throw new IOException( "Could not list " + directory );
+		}
+		Arrays.sort( existing, new Comparator<File>() {
+			public int compare( File a, File b ) {
+				return Long.compare( a.lastModified(), b.lastModified() );
+			}
+		} );
+		for ( File file : existing ) {
+			if ( file.getName().endsWith( SUFFIX ) ) {
+				files.put( file.getName().substring( 0, file.getName().length() - SUFFIX.length() ), file.length() );
+				diskUsed += file.length();
+			}
+		}
+		evictFiles();
+	}
+	
+	/**
+	 * Returns the SHA-256 digest of the pixels, so a source is hashed once
+	 * however many styles it is painted in.
+	 */
+	public static byte[] digest( int[] pixels ) {
+		MessageDigest sha = sha256();
+		ByteBuffer bytes = ByteBuffer.allocate( 64 * 1024 );
+		IntBuffer ints = bytes.asIntBuffer();
+		
+		for ( int i = 0; i < pixels.length; i += ints.capacity() ) {
+			int n = Math.min( ints.capacity(), pixels.length - i );
+			ints.clear();
+			ints.put( pixels, i, n );
+			bytes.clear();
+			bytes.limit( n * 4 );
+			sha.update( bytes );
+		}
+		return sha.digest();
+	}
+	
+	/**
+	 * Returns the key of a painting of the source, by its digest, in the
+	 * style. Parallel renders and the software rasterizer paint slightly
+	 * different pixels, so their paintings are kept apart.
+	 */
+	public static String key( byte[] sourceDigest, int width, int height, PainterlyStyle style, boolean parallel, boolean strokeRasterizer ) {
+		MessageDigest sha = sha256();
+		sha.update( sourceDigest );
+		sha.update( ByteBuffer.allocate( 8 ).putInt( width ).putInt( height ).array() );
+		sha.update( style.toBytes() );
+		sha.update( (byte)( ( parallel ? 1 : 0 ) | ( strokeRasterizer ? 2 : 0 ) ) );
+		
+		StringBuilder hex = new StringBuilder();
+		for ( byte b : sha.digest() ) {
+			hex.append( String.format( "%02x", b & 0xff ) );
+		}
+		return hex.toString();
+	}
+	
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance( "SHA-256" );
+		} catch ( NoSuchAlgorithmException e ) {
+			// every Java runtime has SHA-256
+			throw new IllegalStateException( e );
+		}
+	}
+	
+	/**
+	 * Returns the pixels of the painting with the key, which must not be
+	 * changed, or null if it is not cached. A painting found only on disk
+	 * is read back into memory.
+	 */
+	public int[] get( String key, int width, int height ) {
+		File file;
+		synchronized ( this ) {
+			int[] pixels = entries.get( key );
+			if ( pixels != null ) {
+				hits++;
+				return pixels;
+			}
+			if ( directory == null || files.get( key ) == null ) {
+				misses++;
+				return null;
+			}
+			file = new File( directory, key + SUFFIX );
+		}
+		
+		// read outside the lock; a file that cannot be read, because it was
+		// evicted meanwhile or is damaged, is a miss
+		int[] pixels = null;
+		try {
+			BufferedImage image = new ImageInput().read( file );
+			if ( image.getWidth() == width && image.getHeight() == height ) {
+				pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+				file.setLastModified( System.currentTimeMillis() );
+			}
+		} catch ( IOException e ) {
+			pixels = null;
+		}
+		
+		synchronized ( this ) {
+			if ( pixels == null ) {
+				misses++;
+				return null;
+			}
+			diskHits++;
+			putInMemory( key, pixels );
+			return pixels;
+		}
+	}
+	
+	/**
+	 * Caches the painting's pixels, writing it to disk if the cache has a
+	 * directory. The cache keeps the array, which must not be changed
+	 * afterwards.
+	 */
+	public void put( String key, int[] pixels, int width, int height ) {
+		synchronized ( this ) {
+			putInMemory( key, pixels );
+			if ( directory == null || files.containsKey( key ) ) {
+				return;
+			}
+		}
+		
+		// written under another name and moved into place, so readers never
+		// see half a file
+		long size;
+		try {
+			File temporary = File.createTempFile( key, ".tmp", directory );
+			try {
+				ImageOutput output = new ImageOutput( ImageOutput.PNG );
+				output.setCompressionLevel( ImageOutput.FASTEST_LEVEL );
+				output.write( ImageOutput.opaque( BufferAllocator.createArgbImage( width, height, IntBuffer.wrap( pixels ) ) ), temporary );
+				size = temporary.length();
+				Files.move( temporary.toPath(), new File( directory, key + SUFFIX ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+			} finally {
+				temporary.delete();
+			}
+		} catch ( IOException e ) {
+			return;
+		}
+		
+		synchronized ( this ) {
+			Long old = files.put( key, size );
+			if ( old != null ) {
+				diskUsed -= old;
+			}
+			diskUsed += size;
+			evictFiles();
+		}
+	}
+	
+	private void putInMemory( String key, int[] pixels ) {
+		if ( pixels.length * 4L > budget ) {
+			return;
+		}
+		
+		int[] old = entries.put( key, pixels );
+		if ( old != null ) {
+			used -= old.length * 4L;
+		}
+		used += pixels.length * 4L;
+		
+		evict();
+	}
+	
+	private void evict() {
+		Iterator<int[]> it = entries.values().iterator();
+		while ( used > budget && it.hasNext() ) {
+			used -= it.next().length * 4L;
+			it.remove();
+		}
+	}
+	
+	private void evictFiles() {
+		Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+		while ( diskUsed > diskBudget && it.hasNext() ) {
+			Map.Entry<String, Long> eldest = it.next();
+			new File( directory, eldest.getKey() + SUFFIX ).delete();
+			diskUsed -= eldest.getValue();
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Empties the memory tier, leaving the files alone.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		used = 0;
+	}
+	
+	public synchronized void setBudget( long newValue ) {
+		budget = newValue;
+		evict();
+	}
+	public synchronized long getBudget() {
+		return budget;
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	public synchronized long getDiskBudget() {
+		return diskBudget;
+	}
+	
+	public synchronized long getSizeInBytes() {
+		return used;
+	}
+	public synchronized long getDiskSizeInBytes() {
+		return diskUsed;
+	}
+	
+	/**
+	 * Returns the number of paintings found in memory.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	/**
+	 * Returns the number of paintings read back from disk.
+	 */
+	public synchronized long getDiskHits() {
+		return diskHits;
+	}
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized String toString() {
+		return String.format( "%d hits, %d from disk, %d misses; %d MB in memory, %d MB on disk",
+				hits, diskHits, misses, used >> 20, diskUsed >> 20 );
+	}
+}
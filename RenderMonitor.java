@@ -0,0 +1,200 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Collects the RenderStats of every render in the process and publishes
+ * them over JMX and as Java Flight Recorder events, so a monitoring system
+ * can watch render times without changes to the code calling Document.
+ */
+public class RenderMonitor implements RenderMonitorMXBean {
+	private final static String OBJECT_NAME = "painterly:type=RenderMonitor";
+	
+	@Name( "painterly.Render" )
+	@Label( "Painterly Render" )
+	@Category( "Painterly" )
+	@Description( "A Document render, from the first layer to the last" )
+	static class RenderEvent extends Event {
+		@Label( "Width" )
+		int width;
+		@Label( "Height" )
+		int height;
+		@Label( "Style" )
+		String style;
+		@Label( "Layers" )
+		int layers;
+		@Label( "Strokes" )
+		long strokes;
+		@Label( "Cancelled" )
+		boolean cancelled;
+	}
+	
+	@Name( "painterly.Layer" )
+	@Label( "Painterly Layer" )
+	@Category( "Painterly" )
+	@Description( "One layer of a Document render, with the time spent in each stage" )
+	static class LayerEvent extends Event {
+		@Label( "Brush Size" )
+		int brushSize;
+		@Label( "Edge Pass" )
+		boolean edgePass;
+		@Label( "Blur" ) @Timespan
+		long blur;
+		@Label( "Luma" ) @Timespan
+		long luma;
+		@Label( "Sobel" ) @Timespan
+		long sobel;
+		@Label( "Scan" ) @Timespan
+		long scan;
+		@Label( "Trace" ) @Timespan
+		long trace;
+		@Label( "Rasterize" ) @Timespan
+		long rasterize;
+		@Label( "Strokes" )
+		long strokes;
+		@Label( "Average Stroke Length" )
+		double averageStrokeLength;
+		@Label( "Pixels Covered" )
+		long pixelsCovered;
+	}
+	
+	private static RenderMonitor instance = null;
+	
+	private long renderCount = 0;
+	private long cancelledCount = 0;
+	private long totalRenderNanos = 0;
+	private RenderStats lastRender = null;
+	private RenderStats slowestRender = null;
+	
+	/**
+	 * Returns the monitor, registering it with the platform MBean server the
+	 * first time.
+	 */
+	public static synchronized RenderMonitor getInstance() {
+		if ( instance == null ) {
+			instance = new RenderMonitor();
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean( instance, new ObjectName( OBJECT_NAME ) );
+			} catch ( Exception e ) {
+				// monitoring is optional; renders are recorded either way
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Starts the flight recorder event of a render. Pass it to
+	 * renderFinished once the render is over.
+	 */
+	RenderEvent renderStarted() {
+		RenderEvent event = new RenderEvent();
+		event.begin();
+		
+		return event;
+	}
+	
+	LayerEvent layerStarted() {
+		LayerEvent event = new LayerEvent();
+		event.begin();
+		
+		return event;
+	}
+	
+	void layerFinished( LayerEvent event, RenderStats.Layer layer ) {
+		event.end();
+		if ( event.shouldCommit() ) {
+			event.brushSize = layer.getBrushSize();
+			event.edgePass = layer.isEdgePass();
+			event.blur = layer.getBlurNanos();
+			event.luma = layer.getLumaNanos();
+			event.sobel = layer.getSobelNanos();
+			event.scan = layer.getScanNanos();
+			event.trace = layer.getTraceNanos();
+			event.rasterize = layer.getRasterizeNanos();
+			event.strokes = layer.getStrokes();
+			event.averageStrokeLength = layer.getAverageStrokeLength();
+			event.pixelsCovered = layer.getPixelsCovered();
+			event.commit();
+		}
+	}
+	
+	void renderFinished( RenderEvent event, RenderStats stats ) {
+		event.end();
+		if ( event.shouldCommit() ) {
+			event.width = stats.getWidth();
+			event.height = stats.getHeight();
+			event.style = stats.getStyle();
+			event.layers = stats.getLayers().size();
+			event.strokes = stats.getStrokes();
+			event.cancelled = stats.isCancelled();
+			event.commit();
+		}
+		
+		synchronized ( this ) {
+			renderCount++;
+			if ( stats.isCancelled() ) {
+				cancelledCount++;
+			}
+			totalRenderNanos += stats.getWallNanos();
+			lastRender = stats;
+			if ( !stats.isCancelled() && ( slowestRender == null || stats.getWallNanos() > slowestRender.getWallNanos() ) ) {
+				slowestRender = stats;
+			}
+		}
+	}
+	
+	public synchronized long getRenderCount() {
+		return renderCount;
+	}
+	public synchronized long getCancelledCount() {
+		return cancelledCount;
+	}
+	public synchronized long getTotalRenderMillis() {
+		return totalRenderNanos / 1000000;
+	}
+	
+	public synchronized long getLastRenderMillis() {
+		return lastRender == null ? 0 : lastRender.getWallNanos() / 1000000;
+	}
+	public synchronized RenderStats getLastRender() {
+		return lastRender;
+	}
+	
+	public synchronized long getSlowestRenderMillis() {
+		return slowestRender == null ? 0 : slowestRender.getWallNanos() / 1000000;
+	}
+	public synchronized RenderStats getSlowestRender() {
+		return slowestRender;
+	}
+	
+	public synchronized void reset() {
+		renderCount = 0;
+		cancelledCount = 0;
+		totalRenderNanos = 0;
+		lastRender = null;
+		slowestRender = null;
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+/**
+ * Management interface of RenderMonitor, registered with the platform MBean
+ * server as <code>painterly:type=RenderMonitor</code>.
+ */
+public interface RenderMonitorMXBean {
+	public long getRenderCount();
+	public long getCancelledCount();
+	public long getTotalRenderMillis();
+	
+	public long getLastRenderMillis();
+	public RenderStats getLastRender();
+	
+	public long getSlowestRenderMillis();
+	public RenderStats getSlowestRender();
+	
+	/**
+	 * Forgets every render recorded so far.
+	 */
+	public void reset();
+}
@@ -0,0 +1,380 @@
+/*
+ Copyright 2008 Sahab Yazdani
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal HTTP front end to a RenderService, so other programs can have
+ * images painted without embedding any of this code.
+ *
+ * POST /render with an image as the body paints it and answers with the
+ * painting. The query may name a style (a predefined style name, by
+ * default impressionist), a seed and the format of the answer (png or
+ * jpeg). When the service is full the answer is 503 straight away, before
+ * the body is read, so callers can retry elsewhere. Bodies larger than a
+ * limit are refused with 413. GET /status describes the service's load.
+ *
+ * The server listens on the loopback interface unless told otherwise.
+ */
+public class RenderServer {
+	private final static String USAGE =
+		"Usage: RenderServer [-bind host] [-port n] [-threads n | -virtual] [-capacity n] [-parallelism n] [-rasterizer] [-maxbody mb] [-cache dir [-cachesize mb]]\n" +
+		"  -bind        address to listen on, or * for every interface (default: loopback)\n" +
+		"  -port        port to listen on (default: 8080)\n" +
+		"  -threads     platform threads painting images (default: number of processors)\n" +
+		"  -virtual     paints every image on a virtual thread instead, on Java 21 or later\n" +
+		"  -capacity    images accepted at a time, painting or waiting (default: twice the threads)\n" +
+		"  -parallelism threads used to paint each image (default: 1)\n" +
+		"  -rasterizer  paints strokes with the software rasterizer instead of Java2D\n" +
+		"  -maxbody     megabytes an uploaded image may take up (default: 64)\n" +
+		"  -cache       keeps paintings in the directory and answers repeated requests from it\n" +
+		"  -cachesize   megabytes the cached paintings may take up on disk (default: 1024)";
+
+	public final static long DEFAULT_MAX_BODY_BYTES = 64L << 20;
+
+	private final RenderService service;
+	private final HttpServer server;
+	private volatile long maxBodyBytes = DEFAULT_MAX_BODY_BYTES;
+
+	public RenderServer( RenderService service, InetSocketAddress address ) throws IOException {
+		this.service = service;
+
+		server = HttpServer.create( address, 0 );
+		server.createContext( "/render", new HttpHandler() {
+			public void handle( HttpExchange exchange ) throws IOException {
+				try {
+					render( exchange );
+				} finally {
+					exchange.close();
+				}
+			}
+		} );
+		server.createContext( "/status", new HttpHandler() {
+			public void handle( HttpExchange exchange ) throws IOException {
+				try {
+					RenderService service = RenderServer.this.service;
+					String status = String.format( "pending %d of %d, completed %d, failed %d%n",
+							service.getPendingJobs(), service.getCapacity(), service.getCompletedJobs(), service.getFailedJobs() );
+					if ( service.getRenderCache() != null ) {
+						status += "cache " + service.getRenderCache() + "\n";
+					}
+					respond( exchange, 200, status );
+				} finally {
+					exchange.close();
+				}
+			}
+		} );
+
+		// requests mostly wait for their render, so they get threads of their
+		// own; the service's capacity bounds how many wait at once
+		server.setExecutor( Executors.newCachedThreadPool() );
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop( 0 );
+	}
+
+	/**
+	 * Sets the largest request body, in bytes, that is read as an image.
+	 */
+	public void setMaxBodyBytes( long newValue ) {
+		maxBodyBytes = newValue;
+	}
+	public long getMaxBodyBytes() {
+		return maxBodyBytes;
+	}
+
+	private void render( HttpExchange exchange ) throws IOException {
+		if ( !exchange.getRequestMethod().equals( "POST" ) ) {
+			exchange.getResponseHeaders().set( "Allow", "POST" );
+			respond( exchange, 405, "POST an image to paint it\n" );
+			return;
+		}
+
+		Map<String, String> query = parseQuery( exchange.getRequestURI().getRawQuery() );
+		PainterlyStyle style = PainterlyStyle.forName( query.containsKey( "style" ) ? query.get( "style" ) : "impressionist" );
+		if ( style == null ) {
+			respond( exchange, 400, "Unknown style " + query.get( "style" ) + "\n" );
+			return;
+		}
+		String format = query.containsKey( "format" ) ? query.get( "format" ) : ImageOutput.PNG;
+		if ( !format.equals( ImageOutput.PNG ) && !format.equals( ImageOutput.JPEG ) ) {
+			respond( exchange, 400, "Images can only be returned as png or jpeg\n" );
+			return;
+		}
+
+		long seed;
+		try {
+			seed = query.containsKey( "seed" ) ? Long.parseLong( query.get( "seed" ) ) : style.getSeed();
+		} catch ( NumberFormatException e ) {
+			respond( exchange, 400, "Bad seed " + query.get( "seed" ) + "\n" );
+			return;
+		}
+
+		// take a slot before reading the body, so a full service does not
+		// decode images it is going to turn away
+		RenderService.Reservation reservation = service.tryReserve();
+		if ( reservation == null ) {
+			exchange.getResponseHeaders().set( "Retry-After", "1" );
+			respond( exchange, 503, "Too many images are being painted\n" );
+			return;
+		}
+
+		Future<RenderService.Result> job;
+		try {
+			long limit = maxBodyBytes;
+			String length = exchange.getRequestHeaders().getFirst( "Content-Length" );
+			if ( length != null && Long.parseLong( length ) > limit ) {
+				respond( exchange, 413, "Images may be at most " + limit + " bytes\n" );
+				return;
+			}
+
+			BoundedInputStream body = new BoundedInputStream( exchange.getRequestBody(), limit );
+			BufferedImage image;
+			try {
+				image = new ImageInput().read( body );
+			} catch ( IOException e ) {
+				if ( body.isExceeded() ) {
+					respond( exchange, 413, "Images may be at most " + limit + " bytes\n" );
+				} else {
+					respond( exchange, 400, "Could not read the image: " + e.getMessage() + "\n" );
+				}
+				return;
+			}
+
+			job = reservation.submit( image, style, seed );
+		} catch ( NumberFormatException e ) {
+			respond( exchange, 400, "Bad Content-Length\n" );
+			return;
+		} finally {
+			// does nothing once the job has been submitted
+			reservation.cancel();
+		}
+
+		RenderService.Result result;
+		try {
+			result = job.get();
+		} catch ( InterruptedException e ) {
+			job.cancel( true );
+			Thread.currentThread().interrupt();
+			respond( exchange, 503, "The server is stopping\n" );
+			return;
+		} catch ( ExecutionException e ) {
+			respond( exchange, 500, "Painting failed: " + e.getCause() + "\n" );
+			return;
+		}
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		new ImageOutput( format ).write( ImageOutput.opaque( result.getImage() ), encoded );
+
+		exchange.getResponseHeaders().set( "Content-Type", "image/" + format );
+		exchange.getResponseHeaders().set( "X-Render-Millis", Long.toString( result.getStats().getWallNanos() / 1000000 ) );
+		exchange.getResponseHeaders().set( "X-Strokes", Long.toString( result.getStats().getStrokes() ) );
+		exchange.getResponseHeaders().set( "X-Cache", result.getStats().isCached() ? "hit" : "miss" );
+		exchange.sendResponseHeaders( 200, encoded.size() );
+		OutputStream out = exchange.getResponseBody();
+		encoded.writeTo( out );
+		out.close();
+	}
+
+	/**
+	 * Fails a read once more than a limit of bytes has been read, so an
+	 * upload without a Content-Length cannot be larger either.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+		private boolean exceeded = false;
+
+		public BoundedInputStream( InputStream in, long limit ) {
+			super( in );
+			remaining = limit;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read( b, 0, 1 ) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException {
+			if ( len == 0 ) {
+				return 0;
+			}
+			// read one byte past the limit to tell a body that ends there
+			// from one that goes on
+			int n = super.read( b, off, (int)Math.min( len, remaining + 1 ) );
+			if ( n > 0 ) {
+				remaining -= n;
+				if ( remaining < 0 ) {
+					exceeded = true;
+					throw new IOException( "The request body is too large" );
+				}
+			}
+			return n;
+		}
+
+		public long skip( long n ) throws IOException {
+			byte[] buffer = new byte[(int)Math.min( n, 8192 )];
+			int read = read( buffer, 0, buffer.length );
+			return read < 0 ? 0 : read;
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		public boolean isExceeded() {
+			return exceeded;
+		}
+	}
+
+	private static void respond( HttpExchange exchange, int status, String message ) throws IOException {
+		byte[] body = message.getBytes( "UTF-8" );
+		exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=utf-8" );
+		exchange.sendResponseHeaders( status, body.length );
+		OutputStream out = exchange.getResponseBody();
+		out.write( body );
+		out.close();
+	}
+
+	private static Map<String, String> parseQuery( String query ) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if ( query == null ) {
+			return parameters;
+		}
+		for ( String pair : query.split( "&" ) ) {
+			int equals = pair.indexOf( '=' );
+			if ( equals > 0 ) {
+				parameters.put( URLDecoder.decode( pair.substring( 0, equals ), "UTF-8" ),
+						URLDecoder.decode( pair.substring( equals + 1 ), "UTF-8" ) );
+			}
+		}
+		return parameters;
+	}
+
+	public static void main( String[] args ) {
+		System.setProperty( "java.awt.headless", "true" );
+
+		String bind = null;
+		int port = 8080;
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean virtual = false;
+		int capacity = 0;
+		int parallelism = 1;
+		boolean useStrokeRasterizer = false;
+		File cacheDirectory = null;
+		long cacheMegabytes = 1024;
+		long maxBodyMegabytes = DEFAULT_MAX_BODY_BYTES >> 20;
+
+		try {
+			for ( int i = 0; i < args.length; i++ ) {
+				if ( args[i].equals( "-bind" ) ) {
+					bind = args[++i];
+				} else if ( args[i].equals( "-port" ) ) {
+					port = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-threads" ) ) {
+					threads = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-virtual" ) ) {
+					virtual = true;
+				} else if ( args[i].equals( "-capacity" ) ) {
+					capacity = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-parallelism" ) ) {
+					parallelism = Integer.parseInt( args[++i] );
+				} else if ( args[i].equals( "-rasterizer" ) ) {
+					useStrokeRasterizer = true;
+				} else if ( args[i].equals( "-maxbody" ) ) {
+					maxBodyMegabytes = Long.parseLong( args[++i] );
+				} else if ( args[i].equals( "-cache" ) ) {
+					cacheDirectory = new File( args[++i] );
+				} else if ( args[i].equals( "-cachesize" ) ) {
+					cacheMegabytes = Long.parseLong( args[++i] );
+				} else {
+					throw new IllegalArgumentException( args[i] );
+				}
+			}
+		} catch ( RuntimeException e ) {
+			threads = 0;
+		}
+		if ( threads < 1 || capacity < 0 || parallelism < 1 || cacheMegabytes < 0 || maxBodyMegabytes < 1 ) {
+			System.err.println( USAGE );
+			System.exit( 2 );
+		}
+		if ( capacity == 0 ) {
+			capacity = 2 * threads;
+		}
+
+		RenderService service;
+		try {
+			service = virtual ? RenderService.withVirtualThreads( capacity ) : RenderService.withPlatformThreads( threads, capacity );
+		} catch ( UnsupportedOperationException e ) {
+			System.err.println( e.getMessage() );
+			System.exit( 2 );
+			return;
+		}
+		service.setParallelism( parallelism );
+		service.setUseStrokeRasterizer( useStrokeRasterizer );
+		if ( cacheDirectory != null ) {
+			try {
+				service.setRenderCache( new RenderCache( Runtime.getRuntime().maxMemory() / 8, cacheDirectory, cacheMegabytes << 20 ) );
+			} catch ( IOException e ) {
+				System.err.println( e.getMessage() );
+				System.exit( 1 );
+			}
+		}
+
+		InetSocketAddress address;
+		try {
+			if ( bind == null ) {
+				address = new InetSocketAddress( InetAddress.getLoopbackAddress(), port );
+			} else if ( bind.equals( "*" ) ) {
+				address = new InetSocketAddress( port );
+			} else {
+				address = new InetSocketAddress( InetAddress.getByName( bind ), port );
+			}
+			RenderServer server = new RenderServer( service, address );
+			server.setMaxBodyBytes( maxBodyMegabytes << 20 );
+			server.start();
+		} catch ( IOException e ) {
+			System.err.println( "Could not listen on " + ( bind == null ? "loopback" : bind ) + " port " + port + ": " + e.getMessage() );
+			System.exit( 1 );
+			return;
+		}
+		System.out.printf( "Painting on %s with %s, %d images at a time%n",
+				address, virtual ? "virtual threads" : threads + " threads", capacity );
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ Copyright 2008 Sahab Yazdani
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paints images for many callers at once. Every job gets a Document of its
+ * own, since a Document holds one source and one target and cannot be
+ * shared, and runs on the service's executor.
+ *
+ * At most a fixed number of jobs are accepted at a time, running or
+ * waiting: submit() blocks until a job finishes when the service is full
+ * and trySubmit() turns the job away, so callers are slowed down instead
+ * of piling up work and memory.
+ */
+public class RenderService {
+	private final ExecutorService executor;
+	private final int capacity;
+	private final Semaphore slots;
+
+	private int parallelism = 1;
+	private boolean useStrokeRasterizer = false;
+	private RenderCache renderCache = null;
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * The painting and statistics of a finished job.
+	 */
+	public static class Result {
+		private final BufferedImage image;
+		private final RenderStats stats;
+
+		public Result( BufferedImage image, RenderStats stats ) {
+			this.image = image;
+			this.stats = stats;
+		}
+
+		/**
+		 * Returns the painting, an opaque TYPE_INT_ARGB image.
+		 */
+		public BufferedImage getImage() {
+			return image;
+		}
+		public RenderStats getStats() {
+			return stats;
+		}
+	}
+
+	/**
+	 * @param executor runs the jobs; it is shut down with the service
+	 * @param capacity the number of jobs accepted at a time
+	 */
+	public RenderService( ExecutorService executor, int capacity ) {
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException( "capacity " + capacity + " is less than 1" );
+		}
+		this.executor = executor;
+		this.capacity = capacity;
+		this.slots = new Semaphore( capacity, true );
+	}
+
+	/**
+	 * Returns a service painting on a fixed number of platform threads.
+	 */
+	public static RenderService withPlatformThreads( int threads, int capacity ) {
+		return new RenderService( Executors.newFixedThreadPool( threads ), capacity );
+	}
+
+	/**
+	 * Returns a service painting every job on a virtual thread of its own,
+	 * with the capacity as the only limit on how many run at once.
+	 *
+	 * @throws UnsupportedOperationException if the Java runtime has no
+	 * virtual threads
+	 */
+	public static RenderService withVirtualThreads( int capacity ) {
+		// looked up at run time, so the class still builds and runs on
+		// runtimes without virtual threads
+		ExecutorService executor;
+		try {
+			executor = (ExecutorService)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+		} catch ( ReflectiveOperationException e ) {
+			throw new UnsupportedOperationException( "Virtual threads need Java 21 or later", e );
+		}
+		return new RenderService( executor, capacity );
+	}
+
+	/**
+	 * Sets the number of threads each job paints with.
+	 */
+	public void setParallelism( int newValue ) {
+		parallelism = newValue;
+	}
+
+	public void setUseStrokeRasterizer( boolean newValue ) {
+		useStrokeRasterizer = newValue;
+	}
+	
+	/**
+	 * Makes jobs share a cache of paintings, so an image sent again with the
+	 * same style and seed is answered without painting it.
+	 */
+	public void setRenderCache( RenderCache newValue ) {
+		renderCache = newValue;
+	}
+	public RenderCache getRenderCache() {
+		return renderCache;
+	}
+
+	/**
+	 * Accepts a job, waiting for a slot if the service is full. Cancelling
+	 * the returned future stops the render at its next check.
+	 *
+	 * @param seed overrides the style's seed
+	 * @throws InterruptedException if interrupted while waiting for a slot
+	 */
+	public Future<Result> submit( BufferedImage image, PainterlyStyle style, long seed ) throws InterruptedException {
+		slots.acquire();
+		return start( image, style, seed );
+	}
+
+	/**
+	 * Accepts a job if there is a free slot, and returns null otherwise.
+	 */
+	public Future<Result> trySubmit( BufferedImage image, PainterlyStyle style, long seed ) {
+		Reservation reservation = tryReserve();
+		if ( reservation == null ) {
+			return null;
+		}
+		return reservation.submit( image, style, seed );
+	}
+
+	/**
+	 * Takes a slot for a job that is not ready yet, or returns null if the
+	 * service is full, so a caller can turn work away before decoding its
+	 * image. The slot must be used by submit() or given back by cancel().
+	 */
+	public Reservation tryReserve() {
+		if ( !slots.tryAcquire() ) {
+			return null;
+		}
+		return new Reservation();
+	}
+
+	/**
+	 * A slot taken ahead of its job.
+	 */
+	public class Reservation {
+		private final AtomicBoolean used = new AtomicBoolean();
+
+		private Reservation() {
+		}
+
+		public Future<Result> submit( BufferedImage image, PainterlyStyle style, long seed ) {
+			if ( !used.compareAndSet( false, true ) ) {
+				throw new IllegalStateException( "The reservation has already been used" );
+			}
+			return start( image, style, seed );
+		}
+
+		/**
+		 * Gives the slot back if it has not been used; does nothing otherwise.
+		 */
+		public void cancel() {
+			if ( used.compareAndSet( false, true ) ) {
+				slots.release();
+			}
+		}
+	}
+
+	private Future<Result> start( BufferedImage image, PainterlyStyle style, long seed ) {
+		Job job = new Job( new Render( image, style, seed ) );
+		try {
+			executor.execute( job );
+		} catch ( RuntimeException e ) {
+			slots.release();
+			throw e;
+		}
+		return job;
+	}
+
+	/**
+	 * Returns the number of jobs accepted and not yet finished.
+	 */
+	public int getPendingJobs() {
+		return capacity - slots.availablePermits();
+	}
+	public int getCapacity() {
+		return capacity;
+	}
+	public long getCompletedJobs() {
+		return completed.get();
+	}
+	public long getFailedJobs() {
+		return failed.get();
+	}
+
+	/**
+	 * Stops accepting jobs and waits for those accepted to finish.
+	 */
+	public void shutdown( long timeout, TimeUnit unit ) throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination( timeout, unit );
+	}
+
+	/**
+	 * A job, which passes cancellation on to the document painting it and
+	 * frees its slot once it stops using the executor: when its render
+	 * returns, or when it is cancelled before it starts. A render that is
+	 * cancelled while running keeps its slot until it notices.
+	 */
+	private class Job extends FutureTask<Result> {
+		private final Render render;
+
+		public Job( Render render ) {
+			super( render );
+			this.render = render;
+		}
+
+		public boolean cancel( boolean mayInterruptIfRunning ) {
+			render.token.cancel();
+			return super.cancel( mayInterruptIfRunning );
+		}
+
+		protected void done() {
+			if ( isCancelled() ) {
+				if ( !render.started.get() ) {
+					render.free();
+				}
+				return;
+			}
+			try {
+				get();
+				completed.incrementAndGet();
+			} catch ( Exception e ) {
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	private class Render implements Callable<Result> {
+		private final BufferedImage image;
+		private final PainterlyStyle style;
+		private final long seed;
+
+		private final CancellationToken token = new CancellationToken();
+		private final AtomicBoolean started = new AtomicBoolean();
+		private final AtomicBoolean freed = new AtomicBoolean();
+
+		public Render( BufferedImage image, PainterlyStyle style, long seed ) {
+			this.image = image;
+			this.style = style;
+			this.seed = seed;
+		}
+
+		public Result call() {
+			started.set( true );
+
+			// set up inside the try, so a source too big to allocate for still
+			// frees the slot
+			Document document = null;
+			try {
+				document = new Document();
+				document.setStyle( new PainterlyStyle.Builder( style ).setSeed( seed ).build() );
+				document.setParallelism( parallelism );
+				document.setUseStrokeRasterizer( useStrokeRasterizer );
+				document.setRenderCache( renderCache );
+				document.setSourceImage( image );
+
+				RenderStats stats = document.doPainterly( token );
+				if ( stats == null ) {
+					throw new IllegalStateException( "Painting failed" );
+				}
+				return new Result( document.getTargetImage(), stats );
+			} finally {
+				if ( document != null ) {
+					document.setParallelism( 1 );
+				}
+				free();
+			}
+		}
+
+		/**
+		 * Frees the job's slot, the first time it is called.
+		 */
+		public void free() {
+			if ( freed.compareAndSet( false, true ) ) {
+				slots.release();
+			}
+		}
+	}
+}
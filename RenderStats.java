@@ -0,0 +1,244 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time of one Document render went. A render is made of layers,
+ * one per brush size plus the edge pass, and each layer records the time
+ * spent in each stage of painting it along with what it painted.
+ *
+ * Stage times are summed over the threads painting the layer, so with more
+ * than one thread they can add up to more than the layer's wall time.
+ */
+public class RenderStats {
+	public static class Layer {
+		private final int brushSize;
+		private final boolean edgePass;
+
+		private final LongAdder blurNanos = new LongAdder();
+		private final LongAdder lumaNanos = new LongAdder();
+		private final LongAdder sobelNanos = new LongAdder();
+		private final LongAdder scanNanos = new LongAdder();
+		private final LongAdder traceNanos = new LongAdder();
+		private final LongAdder rasterizeNanos = new LongAdder();
+
+		private final LongAdder strokes = new LongAdder();
+		private final LongAdder strokeLength = new LongAdder();
+
+		private boolean analysisCached = false;
+		private long wallNanos = 0;
+		private long pixelsCovered = 0;
+
+		Layer( int brushSize, boolean edgePass ) {
+			this.brushSize = brushSize;
+			this.edgePass = edgePass;
+		}
+
+		void addBlur( long nanos ) {
+			blurNanos.add( nanos );
+		}
+		void addLuma( long nanos ) {
+			lumaNanos.add( nanos );
+		}
+		void addSobel( long nanos ) {
+			sobelNanos.add( nanos );
+		}
+		void addScan( long nanos ) {
+			scanNanos.add( nanos );
+		}
+
+		/**
+		 * Records a traced stroke.
+		 *
+		 * @param length the distance covered by its control points in pixels
+		 */
+		void addStroke( long length, long traceNanos ) {
+			strokes.increment();
+			strokeLength.add( length );
+			this.traceNanos.add( traceNanos );
+		}
+		/**
+		 * Counts the time spent tracing a stroke that was then thrown away.
+		 */
+		void addTrace( long nanos ) {
+			traceNanos.add( nanos );
+		}
+		void addRasterize( long nanos ) {
+			rasterizeNanos.add( nanos );
+		}
+
+		void finish( long wallNanos, long pixelsCovered ) {
+			this.wallNanos = wallNanos;
+			this.pixelsCovered = pixelsCovered;
+		}
+
+		void setAnalysisCached( boolean newValue ) {
+			analysisCached = newValue;
+		}
+
+		public int getBrushSize() {
+			return brushSize;
+		}
+		public boolean isEdgePass() {
+			return edgePass;
+		}
+		/**
+		 * Whether the blur and gradient came from the analysis cache, in
+		 * which case their stages took no time.
+		 */
+		public boolean isAnalysisCached() {
+			return analysisCached;
+		}
+
+		public long getWallNanos() {
+			return wallNanos;
+		}
+		public long getBlurNanos() {
+			return blurNanos.sum();
+		}
+		public long getLumaNanos() {
+			return lumaNanos.sum();
+		}
+		public long getSobelNanos() {
+			return sobelNanos.sum();
+		}
+		public long getScanNanos() {
+			return scanNanos.sum();
+		}
+		public long getTraceNanos() {
+			return traceNanos.sum();
+		}
+		public long getRasterizeNanos() {
+			return rasterizeNanos.sum();
+		}
+
+		public long getStrokes() {
+			return strokes.sum();
+		}
+		/**
+		 * Returns the mean length of the layer's strokes in pixels; a dot has
+		 * no length.
+		 */
+		public double getAverageStrokeLength() {
+			long count = strokes.sum();
+			return count == 0 ? 0 : strokeLength.sum() / (double)count;
+		}
+		/**
+		 * Returns how many pixels of the canvas were covered once the layer
+		 * was painted. The edge pass traces against an empty canvas and
+		 * reports the pixels its own strokes covered.
+		 */
+		public long getPixelsCovered() {
+			return pixelsCovered;
+		}
+	}
+
+	private final int width;
+	private final int height;
+	private final String style;
+	private final List<Layer> layers = new ArrayList<Layer>();
+
+	private long wallNanos = 0;
+	private boolean cancelled = false;
+	private boolean cached = false;
+
+	RenderStats( int width, int height, PainterlyStyle style ) {
+		this.width = width;
+		this.height = height;
+		this.style = style.toString();
+	}
+
+	Layer addLayer( int brushSize, boolean edgePass ) {
+		Layer layer = new Layer( brushSize, edgePass );
+		layers.add( layer );
+
+		return layer;
+	}
+
+	void finish( long wallNanos, boolean cancelled ) {
+		this.wallNanos = wallNanos;
+		this.cancelled = cancelled;
+	}
+
+	void setCached( boolean cached ) {
+		this.cached = cached;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+	public int getHeight() {
+		return height;
+	}
+	/**
+	 * Returns the parameters of the style that was rendered, in the form
+	 * PainterlyStyle.toString() gives them.
+	 */
+	public String getStyle() {
+		return style;
+	}
+
+	public long getWallNanos() {
+		return wallNanos;
+	}
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	/**
+	 * Returns true if the painting came from a RenderCache, in which case
+	 * there are no layers.
+	 */
+	public boolean isCached() {
+		return cached;
+	}
+
+	/**
+	 * Returns the layers in the order they were painted. A cancelled render
+	 * only has the layers it started.
+	 */
+	public List<Layer> getLayers() {
+		return Collections.unmodifiableList( layers );
+	}
+
+	public long getStrokes() {
+		long total = 0;
+		for ( Layer layer : layers ) {
+			total += layer.getStrokes();
+		}
+		return total;
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+
+		s.append( String.format( "%dx%d in %d ms, %d strokes%s%n", width, height, wallNanos / 1000000,
+				getStrokes(), cancelled ? " (cancelled)" : cached ? " (cached)" : "" ) );
+		for ( Layer layer : layers ) {
+			s.append( String.format( "  %s %2d: %6d ms (blur %d, luma %d, sobel %d, scan %d, trace %d, rasterize %d), " +
+					"%d strokes averaging %.1f px, %d px covered%n",
+					layer.isEdgePass() ? "edges" : "brush", layer.getBrushSize(), layer.getWallNanos() / 1000000,
+					layer.getBlurNanos() / 1000000, layer.getLumaNanos() / 1000000, layer.getSobelNanos() / 1000000,
+					layer.getScanNanos() / 1000000, layer.getTraceNanos() / 1000000, layer.getRasterizeNanos() / 1000000,
+					layer.getStrokes(), layer.getAverageStrokeLength(), layer.getPixelsCovered() ) );
+		}
+
+		return s.toString();
+	}
+}
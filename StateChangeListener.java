@@ -13,8 +13,23 @@
  See the License for the specific language governing permissions and
  limitations under the License.
 */
+import java.awt.image.BufferedImage;
 import java.util.EventListener;
 
 public interface StateChangeListener extends EventListener {
 	public void stateChanged( );
+	
+	/**
+	 * Called on the rendering thread each time a layer has been painted.
+	 * 
+	 * @param frame the target image, which may still be painted into after
+	 *        this call returns
+	 */
+	public void layerPainted( int layer, int layerCount, BufferedImage frame );
+	
+	/**
+	 * Called on the rendering thread when a render has run to completion,
+	 * just before stateChanged.
+	 */
+	public void renderFinished( RenderStats stats );
 }
@@ -0,0 +1,231 @@
+/*
+ Copyright 2008 Sahab Yazdani
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Point2D;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of traced strokes waiting to be painted, kept as parallel arrays
+ * rather than as objects: the colour and width of each stroke, and the
+ * control points of all strokes one after another. Stroke i owns the points
+ * from getFirstPoint( i ) up to getFirstPoint( i + 1 ).
+ */
+public class StrokeBuffer {
+	// written at the start of a serialised buffer
+	private final static int MAGIC = 0x53544b31;
+
+	private int count = 0;
+	private int[] colors = new int[256];
+	private float[] widths = new float[256];
+	private int[] firstPoint = new int[257];
+
+	private int pointCount = 0;
+	private float[] xs = new float[1024];
+	private float[] ys = new float[1024];
+
+	/**
+	 * Appends a stroke through the points, painted in the ARGB colour with a
+	 * brush of the given width.
+	 */
+	public void add( List<Point2D.Float> path, int argb, float width ) {
+		ensureCapacity( count + 1, pointCount + path.size() );
+
+		for ( Point2D.Float p : path ) {
+			xs[pointCount] = p.x;
+			ys[pointCount] = p.y;
+			pointCount++;
+		}
+		colors[count] = argb;
+		widths[count] = width;
+		count++;
+		firstPoint[count] = pointCount;
+	}
+
+	/**
+	 * Appends a control point to the stroke being traced, which is made of
+	 * the points added since the last stroke ended. Tracers write straight
+	 * into the buffer this way, without building a path of their own.
+	 */
+	public void addPoint( float x, float y ) {
+		if ( pointCount == xs.length ) {
+			ensureCapacity( count, pointCount + 1 );
+		}
+		xs[pointCount] = x;
+		ys[pointCount] = y;
+		pointCount++;
+	}
+
+	/**
+	 * Ends the stroke being traced, to be painted in the ARGB colour with a
+	 * brush of the given width.
+	 */
+	public void endStroke( int argb, float width ) {
+		ensureCapacity( count + 1, pointCount );
+
+		colors[count] = argb;
+		widths[count] = width;
+		count++;
+		firstPoint[count] = pointCount;
+	}
+
+	/**
+	 * Drops the points of the stroke being traced.
+	 */
+	public void discardStroke() {
+		pointCount = firstPoint[count];
+	}
+
+	/**
+	 * Appends all strokes of another buffer.
+	 */
+	public void addAll( StrokeBuffer other ) {
+		ensureCapacity( count + other.count, pointCount + other.pointCount );
+
+		System.arraycopy( other.colors, 0, colors, count, other.count );
+		System.arraycopy( other.widths, 0, widths, count, other.count );
+		for ( int i = 1; i <= other.count; i++ ) {
+			firstPoint[count + i] = pointCount + other.firstPoint[i];
+		}
+		System.arraycopy( other.xs, 0, xs, pointCount, other.pointCount );
+		System.arraycopy( other.ys, 0, ys, pointCount, other.pointCount );
+
+		count += other.count;
+		pointCount += other.pointCount;
+	}
+
+	private void ensureCapacity( int strokes, int points ) {
+		if ( strokes >= colors.length ) {
+			int capacity = Math.max( colors.length * 2, strokes + 1 );
+			colors = Arrays.copyOf( colors, capacity );
+			widths = Arrays.copyOf( widths, capacity );
+			firstPoint = Arrays.copyOf( firstPoint, capacity + 1 );
+		}
+		if ( points > xs.length ) {
+			int capacity = Math.max( xs.length * 2, points );
+			xs = Arrays.copyOf( xs, capacity );
+			ys = Arrays.copyOf( ys, capacity );
+		}
+	}
+
+	public void clear() {
+		count = 0;
+		pointCount = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int getColor( int i ) {
+		return colors[i];
+	}
+	public float getWidth( int i ) {
+		return widths[i];
+	}
+
+	/**
+	 * Returns the index of the first point of stroke i; the index for i equal
+	 * to size() is the total number of points of the finished strokes, where
+	 * the points of the stroke being traced start.
+	 */
+	public int getFirstPoint( int i ) {
+		return firstPoint[i];
+	}
+	public int getPointCount( int i ) {
+		return firstPoint[i + 1] - firstPoint[i];
+	}
+	public float getX( int point ) {
+		return xs[point];
+	}
+	public float getY( int point ) {
+		return ys[point];
+	}
+
+	public boolean isDot( int i ) {
+		return getPointCount( i ) == 1;
+	}
+
+	/**
+	 * Returns the curve stroke i is painted along: from its first point,
+	 * rounded down to whole pixels, a cubic Bezier with each run of three
+	 * points as control points, then a line to its last point. Dots have
+	 * no curve; they are painted as a circle of the stroke's width whose
+	 * bounds start at the point rounded down.
+	 */
+	public GeneralPath getPath( int i ) {
+		int first = firstPoint[i], last = firstPoint[i + 1] - 1;
+		GeneralPath gp = new GeneralPath();
+
+		gp.moveTo( (int)xs[first], (int)ys[first] );
+		for ( int j = first + 1; j < last; j++ ) {
+			gp.curveTo( xs[j - 1], ys[j - 1], xs[j], ys[j], xs[j + 1], ys[j + 1] );
+		}
+		gp.lineTo( xs[last], ys[last] );
+
+		return gp;
+	}
+
+	/**
+	 * Writes the strokes in a form read() reads back.
+	 */
+	public void write( DataOutput out ) throws IOException {
+		out.writeInt( MAGIC );
+		out.writeInt( count );
+		for ( int i = 0; i < count; i++ ) {
+			out.writeInt( colors[i] );
+			out.writeFloat( widths[i] );
+			out.writeInt( getPointCount( i ) );
+
+			for ( int j = firstPoint[i]; j < firstPoint[i + 1]; j++ ) {
+				out.writeFloat( xs[j] );
+				out.writeFloat( ys[j] );
+			}
+		}
+	}
+
+	public static StrokeBuffer read( DataInput in ) throws IOException {
+		if ( in.readInt() != MAGIC ) {
+			throw new IOException( "Not a stroke buffer" );
+		}
+
+		StrokeBuffer strokes = new StrokeBuffer();
+		int count = in.readInt();
+		List<Point2D.Float> path = new ArrayList<Point2D.Float>();
+
+		for ( int i = 0; i < count; i++ ) {
+			int argb = in.readInt();
+			float width = in.readFloat();
+			int points = in.readInt();
+			if ( points < 1 ) {
+				throw new IOException( "Stroke " + i + " has no points" );
+			}
+
+			path.clear();
+			for ( int j = 0; j < points; j++ ) {
+				path.add( new Point2D.Float( in.readFloat(), in.readFloat() ) );
+			}
+			strokes.add( path, argb, width );
+		}
+
+		return strokes;
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ Copyright 2008 Sahab Yazdani
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the strokes of a painting as vector graphics, SVG or PDF, or
+ * paints them again at any scale. Strokes are drawn the way Document draws
+ * them with Java2D: over a white canvas, with square caps and mitred joins,
+ * and single points as filled circles.
+ */
+public class StrokeExporter {
+	// the control point offset that makes four cubics approximate a circle
+	private final static double KAPPA = 0.5522847498;
+
+	private final StrokeBuffer strokes;
+	private final int width, height;
+
+	public StrokeExporter( StrokeBuffer strokes, int width, int height ) {
+		this.strokes = strokes;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Writes the file in the format its extension names, svg or pdf. PDF
+	 * pages are sized at 72 pixels to the inch.
+	 */
+	public void write( File file ) throws IOException {
+		String name = file.getName().toLowerCase();
+		if ( !name.endsWith( ".svg" ) && !name.endsWith( ".pdf" ) ) {
+			throw new IOException( "Strokes can only be written as .svg or .pdf: " + file );
+		}
+
+		OutputStream out = new BufferedOutputStream( new FileOutputStream( file ) );
+		try {
+			if ( name.endsWith( ".svg" ) ) {
+				writeSvg( out );
+			} else {
+				writePdf( out, 72 );
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public void writeSvg( OutputStream stream ) throws IOException {
+		Writer out = new OutputStreamWriter( stream, StandardCharsets.UTF_8 );
+
+		out.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+		out.write( "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height +
+				"\" viewBox=\"0 0 " + width + " " + height + "\">\n" );
+		out.write( "<rect width=\"" + width + "\" height=\"" + height + "\" fill=\"#ffffff\"/>\n" );
+		out.write( "<g fill=\"none\" stroke-linecap=\"square\" stroke-linejoin=\"miter\" stroke-miterlimit=\"10\">\n" );
+
+		StringBuilder s = new StringBuilder();
+		float[] coords = new float[6];
+		for ( int i = 0; i < strokes.size(); i++ ) {
+			int argb = strokes.getColor( i );
+			// opaque strokes, the usual case, leave the opacity out
+			String alpha = ( argb >>> 24 ) == 255 ? null : format( ( argb >>> 24 ) / 255.0 );
+			s.setLength( 0 );
+
+			if ( strokes.isDot( i ) ) {
+				int point = strokes.getFirstPoint( i );
+				float radius = (int)strokes.getWidth( i ) / 2.0f;
+				s.append( "<circle cx=\"" ).append( format( (int)strokes.getX( point ) + radius ) );
+				s.append( "\" cy=\"" ).append( format( (int)strokes.getY( point ) + radius ) );
+				s.append( "\" r=\"" ).append( format( radius ) );
+				s.append( "\" fill=\"" ).append( hex( argb ) );
+				if ( alpha != null ) {
+					s.append( "\" fill-opacity=\"" ).append( alpha );
+				}
+				s.append( "\"/>\n" );
+			} else {
+				s.append( "<path d=\"" );
+				for ( PathIterator it = strokes.getPath( i ).getPathIterator( null ); !it.isDone(); it.next() ) {
+					int type = it.currentSegment( coords );
+					s.append( type == PathIterator.SEG_MOVETO ? "M" : type == PathIterator.SEG_CUBICTO ? "C" : "L" );
+					appendCoords( s, coords, type == PathIterator.SEG_CUBICTO ? 6 : 2 );
+				}
+				s.append( "\" stroke=\"" ).append( hex( argb ) );
+				if ( alpha != null ) {
+					s.append( "\" stroke-opacity=\"" ).append( alpha );
+				}
+				s.append( "\" stroke-width=\"" ).append( format( strokes.getWidth( i ) ) );
+				s.append( "\"/>\n" );
+			}
+			out.write( s.toString() );
+		}
+
+		out.write( "</g>\n</svg>\n" );
+		out.flush();
+	}
+
+	/**
+	 * Writes a single page PDF whose page is the painting printed at the
+	 * given resolution. The page description is compressed.
+	 */
+	public void writePdf( OutputStream out, float dotsPerInch ) throws IOException {
+		double scale = 72.0 / dotsPerInch;
+		String pageWidth = format( width * scale ), pageHeight = format( height * scale );
+
+		// opacities are set through graphics states, one per distinct alpha
+		Map<Integer, String> states = new LinkedHashMap<Integer, String>();
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		DeflaterOutputStream deflater = new DeflaterOutputStream( content );
+		StringBuilder s = new StringBuilder();
+
+		// flip to the image's coordinates, y down
+		s.append( "q " ).append( format( scale ) ).append( " 0 0 " ).append( format( -scale ) );
+		s.append( " 0 " ).append( pageHeight ).append( " cm\n" );
+		s.append( "1 1 1 rg 0 0 " ).append( width ).append( ' ' ).append( height ).append( " re f\n" );
+		s.append( "2 J 0 j 10 M\n" );
+
+		float[] coords = new float[6];
+		int lastRgb = -1;
+		float lastWidth = -1;
+		String lastState = null;
+		for ( int i = 0; i < strokes.size(); i++ ) {
+			int argb = strokes.getColor( i );
+			float strokeWidth = strokes.getWidth( i );
+
+			String state = states.get( argb >>> 24 );
+			if ( state == null ) {
+				state = "G" + states.size();
+				states.put( argb >>> 24, state );
+			}
+			if ( !state.equals( lastState ) ) {
+				s.append( '/' ).append( state ).append( " gs\n" );
+				lastState = state;
+			}
+
+			if ( strokes.isDot( i ) ) {
+				int point = strokes.getFirstPoint( i );
+				double radius = (int)strokeWidth / 2.0;
+				double cx = (int)strokes.getX( point ) + radius, cy = (int)strokes.getY( point ) + radius;
+				double k = radius * KAPPA;
+
+				s.append( rgb( argb ) ).append( " rg\n" );
+				s.append( format( cx + radius ) ).append( ' ' ).append( format( cy ) ).append( " m\n" );
+				appendArc( s, cx + radius, cy + k, cx + k, cy + radius, cx, cy + radius );
+				appendArc( s, cx - k, cy + radius, cx - radius, cy + k, cx - radius, cy );
+				appendArc( s, cx - radius, cy - k, cx - k, cy - radius, cx, cy - radius );
+				appendArc( s, cx + k, cy - radius, cx + radius, cy - k, cx + radius, cy );
+				s.append( "f\n" );
+			} else {
+				if ( ( argb & 0xffffff ) != lastRgb ) {
+					s.append( rgb( argb ) ).append( " RG\n" );
+					lastRgb = argb & 0xffffff;
+				}
+				if ( strokeWidth != lastWidth ) {
+					s.append( format( strokeWidth ) ).append( " w\n" );
+					lastWidth = strokeWidth;
+				}
+
+				for ( PathIterator it = strokes.getPath( i ).getPathIterator( null ); !it.isDone(); it.next() ) {
+					int type = it.currentSegment( coords );
+					appendCoords( s, coords, type == PathIterator.SEG_CUBICTO ? 6 : 2 );
+					s.append( type == PathIterator.SEG_MOVETO ? " m\n" : type == PathIterator.SEG_CUBICTO ? " c\n" : " l\n" );
+				}
+				s.append( "S\n" );
+			}
+
+			if ( s.length() > 8192 ) {
+				deflater.write( s.toString().getBytes( StandardCharsets.US_ASCII ) );
+				s.setLength( 0 );
+			}
+		}
+		s.append( "Q\n" );
+		deflater.write( s.toString().getBytes( StandardCharsets.US_ASCII ) );
+		deflater.close();
+
+		StringBuilder resources = new StringBuilder( "<< /ExtGState <<" );
+		for ( Map.Entry<Integer, String> state : states.entrySet() ) {
+			String alpha = format( state.getKey() / 255.0 );
+			resources.append( " /" ).append( state.getValue() ).append( " << /CA " ).append( alpha );
+			resources.append( " /ca " ).append( alpha ).append( " >>" );
+		}
+		resources.append( " >> >>" );
+
+		PdfWriter pdf = new PdfWriter( out );
+		pdf.writeObject( "<< /Type /Catalog /Pages 2 0 R >>" );
+		pdf.writeObject( "<< /Type /Pages /Kids [3 0 R] /Count 1 >>" );
+		pdf.writeObject( "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 " + pageWidth + " " + pageHeight + "] " +
+				"/Resources " + resources + " /Contents 4 0 R >>" );
+		pdf.writeStream( "/Filter /FlateDecode", content.toByteArray() );
+		pdf.finish();
+	}
+
+	/**
+	 * Paints the strokes again into a new image the given number of times
+	 * the size of the original, antialiased.
+	 */
+	public BufferedImage paint( double scale ) {
+		BufferedImage image = new BufferedImage( (int)Math.ceil( width * scale ), (int)Math.ceil( height * scale ),
+				BufferedImage.TYPE_INT_RGB );
+		Graphics2D g = image.createGraphics();
+
+		g.setColor( Color.white );
+		g.fillRect( 0, 0, image.getWidth(), image.getHeight() );
+		g.setRenderingHint( RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON );
+		g.setRenderingHint( RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE );
+		g.scale( scale, scale );
+
+		for ( int i = 0; i < strokes.size(); i++ ) {
+			float strokeWidth = strokes.getWidth( i );
+			g.setColor( new Color( strokes.getColor( i ), true ) );
+
+			if ( strokes.isDot( i ) ) {
+				int point = strokes.getFirstPoint( i );
+				g.fill( new Ellipse2D.Float( (int)strokes.getX( point ), (int)strokes.getY( point ),
+						(int)strokeWidth, (int)strokeWidth ) );
+			} else {
+				g.setStroke( new BasicStroke( strokeWidth ) );
+				g.draw( strokes.getPath( i ) );
+			}
+		}
+		g.dispose();
+
+		return image;
+	}
+
+	private static void appendArc( StringBuilder s, double x1, double y1, double x2, double y2, double x3, double y3 ) {
+		s.append( format( x1 ) ).append( ' ' ).append( format( y1 ) ).append( ' ' );
+		s.append( format( x2 ) ).append( ' ' ).append( format( y2 ) ).append( ' ' );
+		s.append( format( x3 ) ).append( ' ' ).append( format( y3 ) ).append( " c\n" );
+	}
+
+	private static void appendCoords( StringBuilder s, float[] coords, int n ) {
+		for ( int j = 0; j < n; j++ ) {
+			if ( j > 0 ) {
+				s.append( ' ' );
+			}
+			s.append( format( coords[j] ) );
+		}
+	}
+
+	private static String hex( int argb ) {
+		return String.format( "#%06x", argb & 0xffffff );
+	}
+
+	private static String rgb( int argb ) {
+		return format( ( ( argb >> 16 ) & 0xff ) / 255.0 ) + " " + format( ( ( argb >> 8 ) & 0xff ) / 255.0 ) + " " +
+				format( ( argb & 0xff ) / 255.0 );
+	}
+
+	/**
+	 * Formats the number with at most two decimals and no trailing zeros,
+	 * which is a hundredth of a pixel.
+	 */
+	static String format( double v ) {
+		long hundredths = Math.round( v * 100 );
+		if ( hundredths % 100 == 0 ) {
+			return Long.toString( hundredths / 100 );
+		}
+		return BigDecimal.valueOf( hundredths, 2 ).stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 * Numbers PDF objects from one and remembers where each starts for the
+	 * cross-reference table.
+	 */
+	private static class PdfWriter {
+		private final OutputStream out;
+		private final StringBuilder xref = new StringBuilder();
+		private int objects = 0;
+		private long offset = 0;
+
+		public PdfWriter( OutputStream out ) throws IOException {
+			this.out = out;
+			write( "%PDF-1.4\n" );
+		}
+
+		public void writeObject( String body ) throws IOException {
+			startObject();
+			write( body + "\nendobj\n" );
+		}
+
+		public void writeStream( String dictionary, byte[] data ) throws IOException {
+			startObject();
+			write( "<< /Length " + data.length + " " + dictionary + " >>\nstream\n" );
+			out.write( data );
+			offset += data.length;
+			write( "\nendstream\nendobj\n" );
+		}
+
+		public void finish() throws IOException {
+			long start = offset;
+			write( "xref\n0 " + ( objects + 1 ) + "\n0000000000 65535 f \n" + xref );
+			write( "trailer\n<< /Size " + ( objects + 1 ) + " /Root 1 0 R >>\nstartxref\n" + start + "\n%%EOF\n" );
+			out.flush();
+		}
+
+		private void startObject() throws IOException {
+			objects++;
+			xref.append( String.format( "%010d 00000 n \n", offset ) );
+			write( objects + " 0 obj\n" );
+		}
+
+		private void write( String s ) throws IOException {
+			byte[] bytes = s.getBytes( StandardCharsets.US_ASCII );
+			out.write( bytes );
+			offset += bytes.length;
+		}
+	}
+}
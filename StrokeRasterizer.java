@@ -0,0 +1,276 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Paints thick antialiased strokes straight into TYPE_INT_ARGB pixels
+ * and marks the pixels they cover in a CoverageMask, without going through
+ * Graphics2D. A stroke is described the same way as a GeneralPath (moveTo,
+ * lineTo and curveTo); curves are flattened as they are added and the
+ * resulting polyline is painted with a round pen by stroke().
+ *
+ * Every segment of the polyline writes its coverage into a scratch buffer
+ * covering the stroke's bounds, keeping the highest coverage of each pixel,
+ * and the buffer is then blended into the target once. Overlapping segments
+ * of one stroke therefore do not darken each other. A rasterizer keeps its
+ * scratch buffers between strokes, so it must only be used by one thread.
+ */
+public class StrokeRasterizer {
+	// curves are flattened to within this many pixels, which antialiasing hides
+	private final static float FLATNESS = 0.25f;
+
+	private IntBuffer pixels;
+	private int width, height;
+	private CoverageMask mask;
+
+	private float[] xs = new float[64];
+	private float[] ys = new float[64];
+	private int count = 0;
+
+	// coverage of the stroke being painted over its bounds, and the range of
+	// columns touched in each row; the buffer is all zero between strokes
+	private float[] scratch = new float[1024];
+	private int[] spanStart = new int[64];
+	private int[] spanEnd = new int[64];
+	private float[] span = new float[2];
+
+	/**
+	 * Sets the pixels painted by later strokes. The buffer holds the image
+	 * row by row without padding, as a TYPE_INT_ARGB data buffer does.
+	 */
+	public void setTarget( IntBuffer pixels, int width, int height, CoverageMask mask ) {
+		this.pixels = pixels;
+		this.width = width;
+		this.height = height;
+		this.mask = mask;
+	}
+
+	public void moveTo( float x, float y ) {
+		count = 0;
+		addPoint( x, y );
+	}
+
+	public void lineTo( float x, float y ) {
+		addPoint( x, y );
+	}
+
+	/**
+	 * Adds a cubic Bezier curve from the current point.
+	 */
+	public void curveTo( float x1, float y1, float x2, float y2, float x3, float y3 ) {
+		float x0 = xs[count - 1], y0 = ys[count - 1];
+
+		// uniform steps stay within FLATNESS of the curve when the step count
+		// is at least sqrt(3/4 * M / FLATNESS), M being the largest second
+		// difference of the control points
+		float ddx = Math.max( Math.abs( x0 - 2 * x1 + x2 ), Math.abs( x1 - 2 * x2 + x3 ) );
+		float ddy = Math.max( Math.abs( y0 - 2 * y1 + y2 ), Math.abs( y1 - 2 * y2 + y3 ) );
+		float dd = (float)Math.sqrt( ddx * ddx + ddy * ddy );
+		int steps = Math.max( (int)Math.ceil( Math.sqrt( 0.75f * dd / FLATNESS ) ), 1 );
+
+		for ( int i = 1; i <= steps; i++ ) {
+			float t = (float)i / steps;
+			float u = 1 - t;
+			float a = u * u * u, b = 3 * u * u * t, c = 3 * u * t * t, d = t * t * t;
+
+			addPoint( a * x0 + b * x1 + c * x2 + d * x3, a * y0 + b * y1 + c * y2 + d * y3 );
+		}
+	}
+
+	/**
+	 * Paints the current path with a round pen of the given width.
+	 */
+	public void stroke( int argb, float strokeWidth ) {
+		float radius = strokeWidth / 2;
+
+		float minX = xs[0], maxX = xs[0], minY = ys[0], maxY = ys[0];
+		for ( int i = 1; i < count; i++ ) {
+			minX = Math.min( minX, xs[i] );
+			maxX = Math.max( maxX, xs[i] );
+			minY = Math.min( minY, ys[i] );
+			maxY = Math.max( maxY, ys[i] );
+		}
+
+		// pixels up to half a pixel beyond the pen are partly covered
+		int x0 = Math.max( (int)Math.floor( minX - radius - 0.5f ), 0 );
+		int y0 = Math.max( (int)Math.floor( minY - radius - 0.5f ), 0 );
+		int x1 = Math.min( (int)Math.ceil( maxX + radius + 0.5f ), width - 1 );
+		int y1 = Math.min( (int)Math.ceil( maxY + radius + 0.5f ), height - 1 );
+		if ( x0 > x1 || y0 > y1 ) {
+			return;
+		}
+
+		int boundsWidth = x1 - x0 + 1;
+		int boundsHeight = y1 - y0 + 1;
+		if ( scratch.length < boundsWidth * boundsHeight ) {
+			scratch = new float[boundsWidth * boundsHeight];
+		}
+		if ( spanStart.length < boundsHeight ) {
+			spanStart = new int[boundsHeight];
+			spanEnd = new int[boundsHeight];
+		}
+		Arrays.fill( spanStart, 0, boundsHeight, Integer.MAX_VALUE );
+		Arrays.fill( spanEnd, 0, boundsHeight, Integer.MIN_VALUE );
+
+		if ( count == 1 ) {
+			coverSegment( xs[0], ys[0], xs[0], ys[0], radius, x0, y0, x1, y1, boundsWidth );
+		}
+		for ( int i = 1; i < count; i++ ) {
+			coverSegment( xs[i - 1], ys[i - 1], xs[i], ys[i], radius, x0, y0, x1, y1, boundsWidth );
+		}
+
+		blend( argb, x0, y0, x1, y1, boundsWidth );
+	}
+
+	/**
+	 * Paints a filled circle.
+	 */
+	public void fillDisc( float cx, float cy, float radius, int argb ) {
+		moveTo( cx, cy );
+		stroke( argb, radius * 2 );
+	}
+
+	/**
+	 * Raises the scratch coverage of the pixels near the segment from
+	 * (ax, ay) to (bx, by). A pixel's coverage falls off linearly over the
+	 * pixel either side of the pen's edge, so each row is split into the
+	 * span within half a pixel inside the pen, which is fully covered, and
+	 * the pixels either side of it, whose distance to the segment is measured.
+	 */
+	private void coverSegment( float ax, float ay, float bx, float by, float radius,
+			int x0, int y0, int x1, int y1, int boundsWidth ) {
+		float outer = radius + 0.5f;
+		float inner = radius - 0.5f;
+		
+		int minY = Math.max( (int)Math.floor( Math.min( ay, by ) - outer ), y0 );
+		int maxY = Math.min( (int)Math.ceil( Math.max( ay, by ) + outer ), y1 );
+
+		float dx = bx - ax, dy = by - ay;
+		float lengthSqr = dx * dx + dy * dy;
+
+		for ( int y = minY; y <= maxY; y++ ) {
+			float py = y + 0.5f;
+			
+			if ( !CoverageMask.capsuleSpan( ax, ay, bx, by, outer, py, span ) ) {
+				continue;
+			}
+			int minX = Math.max( (int)Math.ceil( span[0] - 0.5f ), x0 );
+			int maxX = Math.min( (int)Math.floor( span[1] - 0.5f ), x1 );
+			if ( minX > maxX ) {
+				continue;
+			}
+			if ( minX < spanStart[y - y0] ) { spanStart[y - y0] = minX; }
+			if ( maxX > spanEnd[y - y0] ) { spanEnd[y - y0] = maxX; }
+			
+			int innerMin = maxX + 1, innerMax = maxX;
+			if ( inner > 0 && CoverageMask.capsuleSpan( ax, ay, bx, by, inner, py, span ) ) {
+				innerMin = Math.max( (int)Math.ceil( span[0] - 0.5f ), minX );
+				innerMax = Math.min( (int)Math.floor( span[1] - 0.5f ), maxX );
+				if ( innerMin > innerMax ) {
+					innerMin = maxX + 1;
+					innerMax = maxX;
+				}
+			}
+			
+			int row = ( y - y0 ) * boundsWidth - x0;
+			for ( int x = minX; x < innerMin; x++ ) {
+				cover( row + x, x + 0.5f, py, ax, ay, dx, dy, lengthSqr, outer );
+			}
+			for ( int x = innerMin; x <= innerMax; x++ ) {
+				scratch[row + x] = 1.0f;
+			}
+			for ( int x = innerMax + 1; x <= maxX; x++ ) {
+				cover( row + x, x + 0.5f, py, ax, ay, dx, dy, lengthSqr, outer );
+			}
+		}
+	}
+	
+	private void cover( int i, float px, float py, float ax, float ay, float dx, float dy, float lengthSqr, float outer ) {
+		float t = lengthSqr == 0 ? 0 : ( ( px - ax ) * dx + ( py - ay ) * dy ) / lengthSqr;
+		if ( t < 0 ) { t = 0; }
+		if ( t > 1 ) { t = 1; }
+		float ex = ax + t * dx - px;
+		float ey = ay + t * dy - py;
+		
+		float c = outer - (float)Math.sqrt( ex * ex + ey * ey );
+		if ( c > 1.0f ) { c = 1.0f; }
+		if ( c > scratch[i] ) {
+			scratch[i] = c;
+		}
+	}
+
+	/**
+	 * Composites the colour over the target with the scratch coverage as
+	 * extra alpha. Pixels whose centre is inside the pen, that is with
+	 * coverage of at least one half, are marked in the coverage mask. The
+	 * scratch buffer is cleared on the way.
+	 */
+	private void blend( int argb, int x0, int y0, int x1, int y1, int boundsWidth ) {
+		int sA = ( argb >>> 24 ), sR = ( argb >> 16 ) & 0xff, sG = ( argb >> 8 ) & 0xff, sB = argb & 0xff;
+
+		for ( int y = y0; y <= y1; y++ ) {
+			int row = ( y - y0 ) * boundsWidth - x0;
+			int line = y * width;
+
+			for ( int x = spanStart[y - y0]; x <= spanEnd[y - y0]; x++ ) {
+				float c = scratch[row + x];
+				if ( c == 0.0f ) {
+					continue;
+				}
+				scratch[row + x] = 0.0f;
+				if ( c >= 0.5f ) {
+					mask.set( x, y );
+				}
+
+				int a = (int)( c * sA + 0.5f );
+				if ( a == 0 ) {
+					continue;
+				}
+
+				int d = pixels.get( line + x );
+				if ( a == 255 ) {
+					pixels.put( line + x, argb | 0xff000000 );
+					continue;
+				}
+
+				// non-premultiplied source over
+				int dA = d >>> 24;
+				int dW = dA * ( 255 - a ) / 255;
+				int oA = a + dW;
+				if ( oA == 0 ) {
+					continue;
+				}
+				int oR = ( sR * a + ( ( d >> 16 ) & 0xff ) * dW ) / oA;
+				int oG = ( sG * a + ( ( d >> 8 ) & 0xff ) * dW ) / oA;
+				int oB = ( sB * a + ( d & 0xff ) * dW ) / oA;
+
+				pixels.put( line + x, ( oA << 24 ) | ( oR << 16 ) | ( oG << 8 ) | oB );
+			}
+		}
+	}
+
+	private void addPoint( float x, float y ) {
+		if ( count == xs.length ) {
+			xs = Arrays.copyOf( xs, count * 2 );
+			ys = Arrays.copyOf( ys, count * 2 );
+		}
+		xs[count] = x;
+		ys[count] = y;
+		count++;
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ Copyright 2008 Sahab Yazdani
+ 
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+ 
+    http://www.apache.org/licenses/LICENSE-2.0
+ 
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.Vector;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Paints images too big to hold in memory by splitting them into tiles.
+ * Each tile is read from the source file on its own through
+ * ImageReadParam.setSourceRegion, painted together with a margin wide
+ * enough for any stroke that could reach it, and cropped back to the tile.
+ * The painting is presented to the image writer as a RenderedImage whose
+ * tiles are painted when the writer asks for them, so memory use depends
+ * on the tile size rather than on the size of the image.
+ *
+ * Strokes near a tile's edge are painted once for each tile they reach
+ * with different random choices, so the seams are not exactly what a
+ * single render would give, but they carry no visible line. Readers for
+ * formats without random access, such as PNG and JPEG, decode the file
+ * from the start for each tile; tiled TIFF sources are read efficiently.
+ */
+public class TiledRenderer {
+	private final PainterlyStyle style;
+	private final int tileSize;
+	private int parallelism = 1;
+	private boolean useStrokeRasterizer = false;
+	private ImageOutput output = new ImageOutput( ImageOutput.TIFF );
+
+	public TiledRenderer( PainterlyStyle style, int tileSize ) {
+		this.style = style;
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Sets the number of threads used to paint each tile.
+	 */
+	public void setParallelism( int newValue ) {
+		parallelism = newValue;
+	}
+
+	public void setUseStrokeRasterizer( boolean newValue ) {
+		useStrokeRasterizer = newValue;
+	}
+	
+	/**
+	 * Sets the format of the files written, by default a TIFF tiled like the
+	 * painting. Formats without tiles are written a row of tiles at a time.
+	 */
+	public void setOutput( ImageOutput newValue ) {
+		output = newValue;
+	}
+	
+	/**
+	 * Returns the width of the band painted around each tile: a stroke of
+	 * the biggest brush can start a grid cell away and run for the longest
+	 * stroke length, and the blur reaches three standard deviations.
+	 */
+	public int getMargin() {
+		int brush = style.getMaximumBrushSize();
+		int stroke = (int)Math.ceil( ( style.getMaximumStrokeLength() + 1 ) * brush + style.getGridSize() * brush );
+		int blur = (int)Math.ceil( 3 * brush * style.getBlurFactor() );
+
+		return Math.max( stroke, blur );
+	}
+
+	/**
+	 * Paints the input file into the output file.
+	 */
+	public void render( File input, File output ) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream( input );
+		if ( in == null ) {
+			throw new IOException( "Could not open " + input );
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders( in );
+			if ( !readers.hasNext() ) {
+				throw new IOException( "No reader for " + input );
+			}
+			ImageReader reader = readers.next();
+			reader.setInput( in, true, true );
+
+			try {
+				write( new PaintedImage( reader ), output );
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void write( PaintedImage image, File file ) throws IOException {
+		try {
+			output.write( image, file );
+		} catch ( PaintingException e ) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Carries an IOException out of RenderedImage methods, which cannot
+	 * throw checked exceptions.
+	 */
+	private static class PaintingException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public PaintingException( IOException cause ) {
+			super( cause );
+		}
+
+		public IOException getCause() {
+			return (IOException)super.getCause();
+		}
+	}
+
+	/**
+	 * The painted image, painting its tiles on demand. A row of tiles is
+	 * kept so writers that walk the image a scanline at a time do not paint
+	 * a tile more than once.
+	 */
+	private class PaintedImage implements RenderedImage {
+		private final ImageReader reader;
+		private final int width, height;
+		private final int tilesX, tilesY;
+		private final long[] seeds;
+
+		private final ColorModel colorModel;
+		private final SampleModel sampleModel;
+
+		private final Map<Point, Raster> tiles;
+
+		public PaintedImage( ImageReader reader ) throws IOException {
+			this.reader = reader;
+			width = reader.getWidth( 0 );
+			height = reader.getHeight( 0 );
+			tilesX = ( width + tileSize - 1 ) / tileSize;
+			tilesY = ( height + tileSize - 1 ) / tileSize;
+
+			// every tile gets its own seed, so the painting does not depend
+			// on the order the writer asks for tiles in
+			SplittableRandom random = new SplittableRandom( style.getSeed() );
+			seeds = new long[tilesX * tilesY];
+			for ( int i = 0; i < seeds.length; i++ ) {
+				seeds[i] = random.nextLong();
+			}
+
+			BufferedImage prototype = new BufferedImage( 1, 1, BufferedImage.TYPE_3BYTE_BGR );
+			colorModel = prototype.getColorModel();
+			sampleModel = prototype.getSampleModel().createCompatibleSampleModel( tileSize, tileSize );
+
+			final int capacity = tilesX;
+			tiles = new LinkedHashMap<Point, Raster>( 16, 0.75f, true ) {
+				protected boolean removeEldestEntry( Map.Entry<Point, Raster> eldest ) {
+					return size() > capacity;
+				}
+			};
+		}
+
+		private Raster paintTile( int tileX, int tileY ) throws IOException {
+			Rectangle tile = new Rectangle( tileX * tileSize, tileY * tileSize, tileSize, tileSize );
+			Rectangle bounds = new Rectangle( 0, 0, width, height );
+
+			Rectangle region = new Rectangle( tile );
+			region.grow( getMargin(), getMargin() );
+			region = region.intersection( bounds );
+
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion( region );
+			BufferedImage source = reader.read( 0, param );
+
+			Document document = new Document();
+			document.setStyle( new PainterlyStyle.Builder( style ).setSeed( seeds[tileY * tilesX + tileX] ).build() );
+			document.setAnalysisCacheBudget( 0 );
+			document.setParallelism( parallelism );
+			document.setUseStrokeRasterizer( useStrokeRasterizer );
+			document.setSourceImage( source );
+			RenderStats stats = document.doPainterly();
+			document.setParallelism( 1 );
+			if ( stats == null ) {
+				// getTile() carries this out of the writer as a PaintingException
+				throw new IOException( "Could not paint tile " + tileX + ", " + tileY );
+			}
+
+			BufferedImage painted = new BufferedImage( tileSize, tileSize, BufferedImage.TYPE_3BYTE_BGR );
+			Rectangle visible = tile.intersection( bounds );
+			painted.createGraphics().drawImage( document.getTargetImage(),
+					0, 0, visible.width, visible.height,
+					visible.x - region.x, visible.y - region.y,
+					visible.x - region.x + visible.width, visible.y - region.y + visible.height, null );
+
+			return painted.getRaster().createTranslatedChild( tile.x, tile.y );
+		}
+
+		public synchronized Raster getTile( int tileX, int tileY ) {
+			Point key = new Point( tileX, tileY );
+			Raster tile = tiles.get( key );
+
+			if ( tile == null ) {
+				try {
+					tile = paintTile( tileX, tileY );
+				} catch ( IOException e ) {
+					throw new PaintingException( e );
+				}
+				tiles.put( key, tile );
+			}
+
+			return tile;
+		}
+
+		public Raster getData() {
+			return getData( new Rectangle( 0, 0, width, height ) );
+		}
+
+		public Raster getData( Rectangle rect ) {
+			WritableRaster raster = Raster.createWritableRaster(
+					sampleModel.createCompatibleSampleModel( rect.width, rect.height ), rect.getLocation() );
+
+			return copyData( raster );
+		}
+
+		public WritableRaster copyData( WritableRaster raster ) {
+			if ( raster == null ) {
+				raster = Raster.createWritableRaster( sampleModel.createCompatibleSampleModel( width, height ), null );
+			}
+			Rectangle rect = raster.getBounds().intersection( new Rectangle( 0, 0, width, height ) );
+			if ( rect.isEmpty() ) {
+				return raster;
+			}
+
+			for ( int ty = rect.y / tileSize; ty <= ( rect.y + rect.height - 1 ) / tileSize; ty++ ) {
+				for ( int tx = rect.x / tileSize; tx <= ( rect.x + rect.width - 1 ) / tileSize; tx++ ) {
+					Raster tile = getTile( tx, ty );
+					Rectangle overlap = tile.getBounds().intersection( rect );
+
+					// the child keeps its place in the image, which is where it is stored
+					raster.setDataElements( 0, 0, tile.createChild( overlap.x, overlap.y,
+							overlap.width, overlap.height, overlap.x, overlap.y, null ) );
+				}
+			}
+
+			return raster;
+		}
+
+		public Vector<RenderedImage> getSources() {
+			return null;
+		}
+		public Object getProperty( String name ) {
+			return Image.UndefinedProperty;
+		}
+		public String[] getPropertyNames() {
+			return null;
+		}
+		public ColorModel getColorModel() {
+			return colorModel;
+		}
+		public SampleModel getSampleModel() {
+			return sampleModel;
+		}
+		public int getWidth() {
+			return width;
+		}
+		public int getHeight() {
+			return height;
+		}
+		public int getMinX() {
+			return 0;
+		}
+		public int getMinY() {
+			return 0;
+		}
+		public int getNumXTiles() {
+			return tilesX;
+		}
+		public int getNumYTiles() {
+			return tilesY;
+		}
+		public int getMinTileX() {
+			return 0;
+		}
+		public int getMinTileY() {
+			return 0;
+		}
+		public int getTileWidth() {
+			return tileSize;
+		}
+		public int getTileHeight() {
+			return tileSize;
+		}
+		public int getTileGridXOffset() {
+			return 0;
+		}
+		public int getTileGridYOffset() {
+			return 0;
+		}
+	}
+}
@@ -13,10 +13,44 @@ REM See the License for the specific language governing permissions and
 REM limitations under the License.
 
 @echo off
-jar cfvm Painterly.jar manifest.txt Document$SobelVector.class
+jar cfvm Painterly.jar manifest.txt AnalysisCache$Key.class
+jar ufv Painterly.jar AnalysisCache.class
+jar ufv Painterly.jar BufferAllocator$1.class
+jar ufv Painterly.jar BufferAllocator$2.class
+jar ufv Painterly.jar BufferAllocator$IntBufferDataBuffer.class
+jar ufv Painterly.jar BufferAllocator.class
+jar ufv Painterly.jar CancellationToken.class
+jar ufv Painterly.jar CoverageMask.class
+jar ufv Painterly.jar Document$1.class
+jar ufv Painterly.jar Document$2.class
+jar ufv Painterly.jar Document$3.class
+jar ufv Painterly.jar Document$4.class
+jar ufv Painterly.jar Document$5.class
+jar ufv Painterly.jar Document$6.class
+jar ufv Painterly.jar Document$Tile.class
 jar ufv Painterly.jar Document.class
 jar ufv Painterly.jar EntryPoint$1.class
 jar ufv Painterly.jar EntryPoint.class
+jar ufv Painterly.jar ErrorMap.class
+jar ufv Painterly.jar GradientField.class
+jar ufv Painterly.jar ImageInput.class
+jar ufv Painterly.jar ImageOutput.class
+jar ufv Painterly.jar PainterlyBatch$1.class
+jar ufv Painterly.jar PainterlyBatch.class
+jar ufv Painterly.jar PainterlyBenchmark$1.class
+jar ufv Painterly.jar PainterlyBenchmark$2.class
+jar ufv Painterly.jar PainterlyBenchmark$3.class
+jar ufv Painterly.jar PainterlyBenchmark$4.class
+jar ufv Painterly.jar PainterlyBenchmark$LayerStages$1.class
+jar ufv Painterly.jar PainterlyBenchmark$LayerStages$2.class
+jar ufv Painterly.jar PainterlyBenchmark$LayerStages$3.class
+jar ufv Painterly.jar PainterlyBenchmark$LayerStages$4.class
+jar ufv Painterly.jar PainterlyBenchmark$LayerStages$5.class
+jar ufv Painterly.jar PainterlyBenchmark$LayerStages$6.class
+jar ufv Painterly.jar PainterlyBenchmark$LayerStages$7.class
+jar ufv Painterly.jar PainterlyBenchmark$LayerStages.class
+jar ufv Painterly.jar PainterlyBenchmark$Pass.class
+jar ufv Painterly.jar PainterlyBenchmark.class
 jar ufv Painterly.jar PainterlyFrame$1.class
 jar ufv Painterly.jar PainterlyFrame$10.class
 jar ufv Painterly.jar PainterlyFrame$11.class
@@ -28,9 +62,19 @@ jar ufv Painterly.jar PainterlyFrame$16.class
 jar ufv Painterly.jar PainterlyFrame$17.class
 jar ufv Painterly.jar PainterlyFrame$18.class
 jar ufv Painterly.jar PainterlyFrame$19.class
+jar ufv Painterly.jar PainterlyFrame$2$1.class
+jar ufv Painterly.jar PainterlyFrame$2$2.class
 jar ufv Painterly.jar PainterlyFrame$2.class
 jar ufv Painterly.jar PainterlyFrame$20.class
 jar ufv Painterly.jar PainterlyFrame$21.class
+jar ufv Painterly.jar PainterlyFrame$22$1.class
+jar ufv Painterly.jar PainterlyFrame$22.class
+jar ufv Painterly.jar PainterlyFrame$23$1.class
+jar ufv Painterly.jar PainterlyFrame$23.class
+jar ufv Painterly.jar PainterlyFrame$24.class
+jar ufv Painterly.jar PainterlyFrame$25.class
+jar ufv Painterly.jar PainterlyFrame$26.class
+jar ufv Painterly.jar PainterlyFrame$27.class
 jar ufv Painterly.jar PainterlyFrame$3.class
 jar ufv Painterly.jar PainterlyFrame$4.class
 jar ufv Painterly.jar PainterlyFrame$5.class
@@ -39,10 +83,37 @@ jar ufv Painterly.jar PainterlyFrame$7.class
 jar ufv Painterly.jar PainterlyFrame$8.class
 jar ufv Painterly.jar PainterlyFrame$9.class
 jar ufv Painterly.jar PainterlyFrame.class
+jar ufv Painterly.jar PainterlyPanel$1$1.class
 jar ufv Painterly.jar PainterlyPanel$1.class
 jar ufv Painterly.jar PainterlyPanel.class
+jar ufv Painterly.jar PainterlyStyle$Builder.class
 jar ufv Painterly.jar PainterlyStyle.class
+jar ufv Painterly.jar RenderCache$1.class
+jar ufv Painterly.jar RenderCache.class
+jar ufv Painterly.jar RenderMonitor$LayerEvent.class
+jar ufv Painterly.jar RenderMonitor$RenderEvent.class
+jar ufv Painterly.jar RenderMonitor.class
+jar ufv Painterly.jar RenderMonitorMXBean.class
+jar ufv Painterly.jar RenderServer$1.class
+jar ufv Painterly.jar RenderServer$2.class
+jar ufv Painterly.jar RenderServer$BoundedInputStream.class
+jar ufv Painterly.jar RenderServer.class
+jar ufv Painterly.jar RenderService$Job.class
+jar ufv Painterly.jar RenderService$Render.class
+jar ufv Painterly.jar RenderService$Reservation.class
+jar ufv Painterly.jar RenderService$Result.class
+jar ufv Painterly.jar RenderService.class
+jar ufv Painterly.jar RenderStats$Layer.class
+jar ufv Painterly.jar RenderStats.class
 jar ufv Painterly.jar StateChangeListener.class
+jar ufv Painterly.jar StrokeBuffer.class
+jar ufv Painterly.jar StrokeExporter$PdfWriter.class
+jar ufv Painterly.jar StrokeExporter.class
+jar ufv Painterly.jar StrokeRasterizer.class
+jar ufv Painterly.jar TiledRenderer$PaintedImage$1.class
+jar ufv Painterly.jar TiledRenderer$PaintedImage.class
+jar ufv Painterly.jar TiledRenderer$PaintingException.class
+jar ufv Painterly.jar TiledRenderer.class
 jar ufv Painterly.jar VerticalTextIcon.class
 jar ufv Painterly.jar com\jhlabs\composite\AddComposite$Context.class
 jar ufv Painterly.jar com\jhlabs\composite\AddComposite.class
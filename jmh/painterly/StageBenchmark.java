@@ -0,0 +1,83 @@
+/*
+ Copyright 2008 Sahab Yazdani
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+package painterly;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the stages of a Document render, one layer at a time:
+ * blur, luma conversion, Sobel, the grid error scan, tracing strokes and
+ * painting them with Java2D or the software rasterizer. Run with
+ * <code>gradle jmh</code>; JMH options go in <code>--args</code>, e.g.
+ * <code>--args="-p megapixels=12 -p stage=sobel,scan"</code>, and
+ * <code>-p image=photo.jpg</code> times a sample image instead of the
+ * synthetic one.
+ *
+ * JMH does not accept benchmarks in the default package, and classes
+ * outside it cannot name the painter's classes, so the stage is looked up
+ * through PainterlyBenchmark.createStage() once per trial.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx5g", "-Djava.awt.headless=true" } )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+public class StageBenchmark {
+	@Param( { "1", "12", "48" } )
+	public float megapixels;
+
+	@Param( { "synthetic" } )
+	public String image;
+
+	@Param( { "impressionist" } )
+	public String style;
+
+	@Param( { "8", "4", "2" } )
+	public int brushSize;
+
+	@Param( { "blur", "luma", "sobel", "scan", "traceStroke", "renderStroke", "rasterizeStroke" } )
+	public String stage;
+
+	private Runnable pass;
+
+	@Setup( Level.Trial )
+	public void setUp() throws Exception {
+		Method createStage = Class.forName( "PainterlyBenchmark" ).getMethod( "createStage",
+				String.class, float.class, String.class, int.class, String.class );
+		pass = (Runnable)createStage.invoke( null, image, megapixels, style, brushSize, stage );
+	}
+
+	@Benchmark
+	public void run() {
+		pass.run();
+	}
+}